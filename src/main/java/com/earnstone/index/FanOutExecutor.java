@@ -0,0 +1,272 @@
+/*
+ * Eindex: Earnstone Sharded Column Index for Cassandra
+ *
+ * Copyright 2011 Corey Hulen, Earnstone Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.earnstone.index;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import me.prettyprint.hector.api.exceptions.HTimedOutException;
+import me.prettyprint.hector.api.exceptions.HectorException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the independent row reads of one index operation in parallel. Tasks
+ * run on virtual threads when the JVM has them and on a shared daemon thread
+ * pool otherwise.
+ * 
+ * Each index has its own limit of tasks in flight. Tasks over the limit run
+ * on the calling thread instead of waiting, so nested fan-outs (a range scan
+ * expanding its sub-shard rows) can never deadlock on the limit.
+ * 
+ * An optional timeout sets a deadline for the whole operation. Nested
+ * fan-outs inherit the deadline of the task they run in, and an operation
+ * past its deadline fails with an HTimedOutException.
+ */
+public class FanOutExecutor {
+
+	private static final Logger log = LoggerFactory.getLogger(FanOutExecutor.class);
+	private static final ExecutorService sharedExecutor = createSharedExecutor();
+	private static final ThreadLocal<Long> currentDeadline = new ThreadLocal<Long>();
+	private static boolean virtualThreads;
+
+	private ExecutorService executor;
+	private Semaphore permits;
+	private int concurrency;
+	private long timeoutMillis;
+
+	public FanOutExecutor(int concurrency) {
+		this(sharedExecutor, concurrency, 0);
+	}
+
+	/**
+	 * @param executor
+	 *            runs the tasks, it should not bound its threads since the
+	 *            limit is applied here.
+	 * @param concurrency
+	 *            the maximum tasks in flight for this index.
+	 * @param timeoutMillis
+	 *            the deadline of an operation or 0 for none.
+	 */
+	public FanOutExecutor(ExecutorService executor, int concurrency, long timeoutMillis) {
+		if (concurrency < 1) {
+			String msg = "Fan-out concurrency must be at least 1.";
+			log.error(msg);
+			throw new IllegalArgumentException(msg);
+		}
+
+		this.executor = executor;
+		this.concurrency = concurrency;
+		this.permits = new Semaphore(concurrency);
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	private static ExecutorService createSharedExecutor() {
+
+		try {
+			ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			virtualThreads = true;
+			return executor;
+		}
+		catch (Exception e) {
+			log.debug("Virtual threads are not available, fanning out on platform threads");
+		}
+
+		final AtomicInteger count = new AtomicInteger();
+
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "eindex-fanout-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * @return true if the shared executor runs on virtual threads.
+	 */
+	public static boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/**
+	 * Runs the tasks in parallel and waits for all of them.
+	 * 
+	 * @return the results in task order.
+	 */
+	public <V> List<V> invokeAll(List<? extends Callable<V>> tasks) {
+		final long deadline = getDeadline();
+		List<V> results = new ArrayList<V>(tasks.size());
+
+		if (tasks.size() == 1) {
+			results.add(runInline(tasks.get(0), deadline));
+			return results;
+		}
+
+		List<Future<V>> futures = new ArrayList<Future<V>>(tasks.size());
+		// set by whoever gets to a submitted task first, the task when it
+		// starts or the cancel path when it never did, which then owns the
+		// release of its permit
+		List<AtomicBoolean> claims = new ArrayList<AtomicBoolean>(tasks.size());
+
+		try {
+			for (final Callable<V> task : tasks) {
+				if (permits.tryAcquire()) {
+					final AtomicBoolean claimed = new AtomicBoolean();
+					claims.add(claimed);
+
+					futures.add(executor.submit(new Callable<V>() {
+						public V call() throws Exception {
+							if (!claimed.compareAndSet(false, true))
+								return null;
+
+							try {
+								return runInline(task, deadline);
+							}
+							finally {
+								permits.release();
+							}
+						}
+					}));
+				}
+				else {
+					claims.add(null);
+					futures.add(null);
+				}
+
+				results.add(null);
+			}
+
+			for (int i = 0; i < tasks.size(); i++) {
+				if (futures.get(i) == null)
+					results.set(i, runInline(tasks.get(i), deadline));
+			}
+
+			for (int i = 0; i < tasks.size(); i++) {
+				if (futures.get(i) != null)
+					results.set(i, await(futures.get(i), deadline));
+			}
+
+			return results;
+		}
+		catch (RuntimeException e) {
+			for (int i = 0; i < claims.size(); i++) {
+				// a claim without a future is a task the executor rejected
+				Future<V> future = i < futures.size() ? futures.get(i) : null;
+
+				if (claims.get(i) != null && claims.get(i).compareAndSet(false, true))
+					permits.release();
+
+				if (future != null)
+					future.cancel(true);
+			}
+
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the deadline in System.nanoTime of the operation running on this
+	 *         thread, or a new one, 0 for none.
+	 */
+	private long getDeadline() {
+		Long inherited = currentDeadline.get();
+
+		if (inherited != null)
+			return inherited;
+		else if (timeoutMillis > 0)
+			return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		else
+			return 0;
+	}
+
+	private <V> V runInline(Callable<V> task, long deadline) {
+		if (deadline != 0 && System.nanoTime() - deadline > 0)
+			throw new HTimedOutException("Index fan-out deadline exceeded.");
+
+		Long previous = currentDeadline.get();
+		currentDeadline.set(deadline == 0 ? null : deadline);
+
+		try {
+			return task.call();
+		}
+		catch (RuntimeException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			throw new HectorException(e);
+		}
+		finally {
+			if (previous == null)
+				currentDeadline.remove();
+			else
+				currentDeadline.set(previous);
+		}
+	}
+
+	private <V> V await(Future<V> future, long deadline) {
+
+		try {
+			if (deadline == 0)
+				return future.get();
+			else
+				return future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+		}
+		catch (TimeoutException e) {
+			throw new HTimedOutException("Index fan-out deadline exceeded.");
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new HectorException("Interrupted while reading index rows.", e);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			else
+				throw new HectorException(e.getCause());
+		}
+	}
+
+	public int getConcurrency() {
+		return concurrency;
+	}
+
+	public long getTimeoutMillis() {
+		return timeoutMillis;
+	}
+
+	/**
+	 * @return the tasks that may still be started on other threads.
+	 */
+	public int getAvailablePermits() {
+		return permits.availablePermits();
+	}
+}
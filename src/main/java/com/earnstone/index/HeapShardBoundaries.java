@@ -0,0 +1,63 @@
+/*
+ * Eindex: Earnstone Sharded Column Index for Cassandra
+ *
+ * Copyright 2011 Corey Hulen, Earnstone Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.earnstone.index;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * Shard boundaries kept in a TreeSet on the heap, for any index type.
+ */
+public class HeapShardBoundaries<T> implements ShardBoundaries<T> {
+
+	private TreeSet<T> boundaries;
+
+	public HeapShardBoundaries(Collection<T> boundaries) {
+		this.boundaries = new TreeSet<T>(boundaries);
+	}
+
+	public int size() {
+		return boundaries.size();
+	}
+
+	public T first() {
+		return boundaries.isEmpty() ? null : boundaries.first();
+	}
+
+	public T last() {
+		return boundaries.isEmpty() ? null : boundaries.last();
+	}
+
+	public T ceiling(T key) {
+		return boundaries.ceiling(key);
+	}
+
+	public T higher(T key) {
+		return boundaries.higher(key);
+	}
+
+	public T lower(T key) {
+		return boundaries.lower(key);
+	}
+
+	public Iterator<T> iterator() {
+		return Collections.unmodifiableSet(boundaries).iterator();
+	}
+}
@@ -0,0 +1,275 @@
+/*
+ * Eindex: Earnstone Sharded Column Index for Cassandra
+ *
+ * Copyright 2011 Corey Hulen, Earnstone Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.earnstone.index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.earnstone.index.store.IndexColumn;
+
+/**
+ * Aggregate queries over an index that only move column counts across the
+ * wire. Counts of several shard rows are requested in parallel on the fan-out
+ * executor of the index.
+ */
+public class IndexAggregator<T> {
+
+	private static final Logger log = LoggerFactory.getLogger(IndexAggregator.class);
+
+	private ShardedIndex<T> index;
+	private int sampleLimit = 1000;
+	private long maxStatisticsAgeMillis = 60 * 60 * 1000;
+	private volatile long sampledAt = -1;
+
+	public IndexAggregator(ShardedIndex<T> index) {
+		this.index = index;
+	}
+
+	/**
+	 * Counts the index keys between start and end inclusive.
+	 * 
+	 * @param start
+	 *            the first key or null for the start of the index.
+	 * @param end
+	 *            the last key or null for the end of the index.
+	 */
+	public long countRange(final T start, final T end) {
+		checkRange(start, end);
+		List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+
+		for (T boundary : index.getBoundariesForRange(start, end)) {
+			final byte[] shardKey = getShardKey(boundary);
+
+			tasks.add(new Callable<Integer>() {
+				public Integer call() {
+					return index.getStore().count(shardKey, start, end);
+				}
+			});
+		}
+
+		return sum(invokeAll(tasks));
+	}
+
+	/**
+	 * Estimates the index keys between start and end inclusive. Shards lying
+	 * entirely inside the range are taken from the saved statistics, only the
+	 * shards at either end of the range are counted.
+	 * 
+	 * @return the estimate or the exact count if no statistics were collected.
+	 */
+	public long estimateRange(final T start, final T end) {
+		ShardStatistics<T> stats = index.getStatistics();
+
+		if (stats == null)
+			return countRange(start, end);
+
+		checkRange(start, end);
+		List<T> boundaries = index.getBoundariesForRange(start, end);
+		List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+		long total = 0;
+
+		for (int i = 0; i < boundaries.size(); i++) {
+			T boundary = boundaries.get(i);
+			boolean partial = (i == 0 && start != null) || (i == boundaries.size() - 1 && end != null && !end.equals(boundary));
+			Long count = boundary == null ? Long.valueOf(stats.getOverflowShardCount()) : stats.getShardCounts().get(boundary);
+
+			if (!partial && count != null) {
+				total += count;
+			}
+			else {
+				final byte[] shardKey = getShardKey(boundary);
+
+				tasks.add(new Callable<Integer>() {
+					public Integer call() {
+						return index.getStore().count(shardKey, start, end);
+					}
+				});
+			}
+		}
+
+		return total + sum(invokeAll(tasks));
+	}
+
+	/**
+	 * Counts the values stored under an index key.
+	 */
+	public int countValues(T key) {
+		byte[] raw = index.getRawDataForIndex(index.getShardKeyForIndex(key), key);
+
+		if (raw == null || raw.length == 0)
+			return 0;
+		else if (Arrays.equals(index.getEmptyValue(), raw))
+			return index.getStore().count(index.getSubShardKeyForIndex(key), null, null);
+		else
+			return 1;
+	}
+
+	/**
+	 * Returns the keys holding the most values. The candidates are the
+	 * multi-value keys found by the last collected statistics and are
+	 * recounted exactly. The statistics are collected again with the sample
+	 * limit when there are none, when they hold no key samples (unless this
+	 * aggregator sampled them) or when they are older than the max statistics
+	 * age. Keys that turned multi-valued since then are missed.
+	 */
+	public List<ShardStatistics.Entry<T>> getTopKeys(int limit) {
+		ShardStatistics<T> stats = index.getStatistics();
+
+		if (stats == null || isStale(stats)) {
+			stats = index.collectStatistics(sampleLimit);
+			sampledAt = stats.getCollectedAt();
+		}
+
+		final List<T> keys = new ArrayList<T>(stats.getKeyValueCounts().keySet());
+		List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+
+		for (final T key : keys) {
+			tasks.add(new Callable<Integer>() {
+				public Integer call() {
+					return countValues(key);
+				}
+			});
+		}
+
+		List<Integer> counts = invokeAll(tasks);
+		List<ShardStatistics.Entry<T>> list = new ArrayList<ShardStatistics.Entry<T>>();
+
+		for (int i = 0; i < keys.size(); i++) {
+			if (counts.get(i) > 0)
+				list.add(new ShardStatistics.Entry<T>(keys.get(i), counts.get(i)));
+		}
+
+		Collections.sort(list, new Comparator<ShardStatistics.Entry<T>>() {
+			public int compare(ShardStatistics.Entry<T> o1, ShardStatistics.Entry<T> o2) {
+				return o1.getCount() < o2.getCount() ? 1 : (o1.getCount() == o2.getCount() ? 0 : -1);
+			}
+		});
+
+		if (list.size() > limit)
+			return new ArrayList<ShardStatistics.Entry<T>>(list.subList(0, limit));
+		else
+			return list;
+	}
+
+	/**
+	 * @return the smallest key between start and end inclusive or null if the
+	 *         range is empty.
+	 */
+	public T getFirstKey(T start, T end) {
+		checkRange(start, end);
+
+		for (T boundary : index.getBoundariesForRange(start, end)) {
+			List<IndexColumn<T>> list = index.getStore().slice(getShardKey(boundary), start, end, false, 1);
+
+			if (!list.isEmpty())
+				return list.get(0).getName();
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return the largest key between start and end inclusive or null if the
+	 *         range is empty.
+	 */
+	public T getLastKey(T start, T end) {
+		checkRange(start, end);
+		List<T> boundaries = index.getBoundariesForRange(start, end);
+
+		for (int i = boundaries.size() - 1; i >= 0; i--) {
+			List<IndexColumn<T>> list = index.getStore().slice(getShardKey(boundaries.get(i)), end, start, true, 1);
+
+			if (!list.isEmpty())
+				return list.get(0).getName();
+		}
+
+		return null;
+	}
+
+	private byte[] getShardKey(T boundary) {
+		return boundary == null ? index.emptyIndexKey : index.getShardKeyForBoundary(boundary);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void checkRange(T start, T end) {
+		if (start != null && end != null && ((Comparable<T>) start).compareTo(end) > 0) {
+			String msg = "Range start '" + start + "' is after the end '" + end + "'";
+			log.error(msg);
+			throw new IllegalArgumentException(msg);
+		}
+	}
+
+	private static long sum(List<Integer> counts) {
+		long total = 0;
+
+		for (Integer count : counts) {
+			total += count;
+		}
+
+		return total;
+	}
+
+	private <V> List<V> invokeAll(List<Callable<V>> tasks) {
+
+		try {
+			return index.getFanOutExecutor().invokeAll(tasks);
+		}
+		catch (RuntimeException e) {
+			log.error("Failed counting shard of index '" + new String(index.getBaseIndexKey()) + "'", e);
+			throw e;
+		}
+	}
+
+	protected boolean isStale(ShardStatistics<T> stats) {
+		if (maxStatisticsAgeMillis > 0 && System.currentTimeMillis() - stats.getCollectedAt() > maxStatisticsAgeMillis)
+			return true;
+
+		return stats.getKeyValueCounts().isEmpty() && stats.getCollectedAt() != sampledAt;
+	}
+
+	/**
+	 * Sets the number of columns per shard row sampled for multi-value keys
+	 * when getTopKeys has to collect statistics.
+	 */
+	public void setSampleLimit(int sampleLimit) {
+		this.sampleLimit = sampleLimit;
+	}
+
+	public int getSampleLimit() {
+		return sampleLimit;
+	}
+
+	/**
+	 * Sets how old the statistics may get before getTopKeys collects them
+	 * again, 0 never collects them for their age.
+	 */
+	public void setMaxStatisticsAgeMillis(long maxStatisticsAgeMillis) {
+		this.maxStatisticsAgeMillis = maxStatisticsAgeMillis;
+	}
+
+	public long getMaxStatisticsAgeMillis() {
+		return maxStatisticsAgeMillis;
+	}
+}
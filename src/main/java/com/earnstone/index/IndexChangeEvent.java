@@ -0,0 +1,99 @@
+/*
+ * Eindex: Earnstone Sharded Column Index for Cassandra
+ *
+ * Copyright 2011 Corey Hulen, Earnstone Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.earnstone.index;
+
+/**
+ * One change made to an index.
+ */
+public class IndexChangeEvent<T> {
+
+	public enum Type {
+		/** value was added to the key */
+		ADD,
+		/** value was removed from the key */
+		REMOVE,
+		/** every value of the key was removed, the value is null */
+		REMOVE_ALL,
+		/** the values of the key were replaced by value */
+		OVERWRITE
+	}
+
+	private Type type;
+	private T index;
+	private T value;
+	private T boundary;
+	private long sequence;
+	private long timestamp;
+	private long eventId;
+
+	public IndexChangeEvent(Type type, T index, T value, T boundary, long sequence, long timestamp, long eventId) {
+		this.type = type;
+		this.index = index;
+		this.value = value;
+		this.boundary = boundary;
+		this.sequence = sequence;
+		this.timestamp = timestamp;
+		this.eventId = eventId;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public T getIndex() {
+		return index;
+	}
+
+	public T getValue() {
+		return value;
+	}
+
+	/**
+	 * @return the boundary of the shard the key belongs to, null is the
+	 *         overflow shard past the last boundary.
+	 */
+	public T getBoundary() {
+		return boundary;
+	}
+
+	/**
+	 * @return the position of the event among the events of its shard emitted
+	 *         by this process, starting at 1. Writes through this process are
+	 *         numbered in the order they were applied to the shard.
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * @return the column name of the event in the change log or 0 if it was
+	 *         not read from the change log.
+	 */
+	public long getEventId() {
+		return eventId;
+	}
+
+	@Override
+	public String toString() {
+		return type + " " + index + (value == null ? "" : " " + value) + " shard=" + (boundary == null ? "overflow" : boundary.toString()) + " seq=" + sequence;
+	}
+}
@@ -0,0 +1,30 @@
+/*
+ * Eindex: Earnstone Sharded Column Index for Cassandra
+ *
+ * Copyright 2011 Corey Hulen, Earnstone Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.earnstone.index;
+
+/**
+ * Receives the changes made through the write paths of a ShardedIndex. Events
+ * are delivered on the writing thread after the mutation succeeded and the
+ * shard lock was released. The sequences of a shard follow the order its
+ * writes were applied in, but concurrent writers deliver independently, so
+ * listeners must be thread safe and order the events of a shard by sequence.
+ */
+public interface IndexChangeListener<T> {
+
+	public void indexChanged(IndexChangeEvent<T> event);
+}
@@ -0,0 +1,262 @@
+/*
+ * Eindex: Earnstone Sharded Column Index for Cassandra
+ *
+ * Copyright 2011 Corey Hulen, Earnstone Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.earnstone.index;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.lang.ArrayUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.earnstone.index.store.IndexColumn;
+import com.earnstone.index.store.IndexMutation;
+
+/**
+ * A durable log of the changes of a long index, kept in the index column
+ * family so consumers can tail it from a checkpoint instead of re-reading the
+ * index.
+ * 
+ * Events are stored in one row per time bucket at 'myindex:@:' + bucket. The
+ * column names are event ids made of the milliseconds since 2011-01-01 UTC
+ * (41 bits, good until 2080), a node id and a counter, so columns sort in time
+ * order and writers on different nodes don't collide. Readers stay a lag behind the clock so events written late by a
+ * slower writer are not skipped.
+ */
+public class IndexChangeLog implements IndexChangeListener<Long> {
+
+	private static final byte[] LogDelim = { ':', '@', ':' };
+	private static final int NODE_BITS = 10;
+	private static final int COUNTER_BITS = 12;
+	// 2011-01-01 UTC, milliseconds since 1970 overflow the sign bit of an
+	// event id in 2039
+	private static final long EPOCH = 1293840000000L;
+	private static final Logger log = LoggerFactory.getLogger(IndexChangeLog.class);
+
+	private ShardedIndex<Long> index;
+	private long bucketMillis;
+	private long readLagMillis = 1000;
+	private int nodeId = new SecureRandom().nextInt(1 << NODE_BITS);
+	private long lastMillis;
+	private int counter;
+
+	/**
+	 * A position in the log, the next read returns the events after it.
+	 */
+	public static class Checkpoint {
+
+		private long bucket;
+		private long eventId;
+
+		public Checkpoint(long bucket, long eventId) {
+			this.bucket = bucket;
+			this.eventId = eventId;
+		}
+
+		public long getBucket() {
+			return bucket;
+		}
+
+		/**
+		 * @return the id of the last event read or 0 for the start of the
+		 *         bucket.
+		 */
+		public long getEventId() {
+			return eventId;
+		}
+
+		@Override
+		public String toString() {
+			return bucket + ":" + eventId;
+		}
+	}
+
+	/**
+	 * @param bucketMillis
+	 *            the time covered by one log row.
+	 */
+	public IndexChangeLog(ShardedIndex<Long> index, long bucketMillis) {
+		if (bucketMillis <= 0) {
+			String msg = "The change log bucket size must be positive.";
+			log.error(msg);
+			throw new IllegalArgumentException(msg);
+		}
+
+		this.index = index;
+		this.bucketMillis = bucketMillis;
+	}
+
+	public void indexChanged(IndexChangeEvent<Long> event) {
+		long eventId = nextEventId(event.getTimestamp());
+		byte[] rowKey = getLogKeyForBucket(getBucket(eventId));
+		index.getStore().mutate(Arrays.asList(IndexMutation.insert(rowKey, eventId, getBytesForEvent(event))));
+	}
+
+	/**
+	 * @return the checkpoint reading the log from the given time on.
+	 */
+	public Checkpoint getCheckpoint(long millis) {
+		return new Checkpoint(millis / bucketMillis, 0);
+	}
+
+	/**
+	 * Delivers up to limit events after the checkpoint in event id order.
+	 * 
+	 * @return the checkpoint after the last event delivered.
+	 */
+	public Checkpoint tail(Checkpoint from, int limit, IndexChangeListener<Long> listener) {
+		long readTo = System.currentTimeMillis() - readLagMillis;
+		long lastEventId = ((readTo - EPOCH) << (NODE_BITS + COUNTER_BITS)) | ((1L << (NODE_BITS + COUNTER_BITS)) - 1);
+		long bucket = from.getBucket();
+		long eventId = from.getEventId();
+		int delivered = 0;
+
+		while (delivered < limit && eventId < lastEventId) {
+			List<IndexColumn<Long>> columns = index.getStore().slice(getLogKeyForBucket(bucket), eventId + 1, lastEventId, false, limit - delivered);
+
+			for (IndexColumn<Long> column : columns) {
+				listener.indexChanged(getEventForBytes(column.getName(), column.getValue()));
+				eventId = column.getName();
+				delivered++;
+			}
+
+			if (delivered < limit && (bucket + 1) * bucketMillis <= readTo) {
+				bucket++;
+				eventId = 0;
+			}
+			else {
+				break;
+			}
+		}
+
+		return new Checkpoint(bucket, eventId);
+	}
+
+	/**
+	 * Deletes the row of a bucket once every consumer has read past it.
+	 */
+	public void deleteBucket(long bucket) {
+		index.getStore().mutate(Arrays.asList(IndexMutation.<Long> deleteRow(getLogKeyForBucket(bucket))));
+	}
+
+	protected synchronized long nextEventId(long millis) {
+		if (millis - EPOCH > lastMillis) {
+			lastMillis = millis - EPOCH;
+			counter = 0;
+		}
+		else if (++counter == 1 << COUNTER_BITS) {
+			lastMillis++;
+			counter = 0;
+		}
+
+		return (lastMillis << (NODE_BITS + COUNTER_BITS)) | ((long) nodeId << COUNTER_BITS) | counter;
+	}
+
+	protected long getBucket(long eventId) {
+		return ((eventId >>> (NODE_BITS + COUNTER_BITS)) + EPOCH) / bucketMillis;
+	}
+
+	protected byte[] getLogKeyForBucket(long bucket) {
+		return ArrayUtils.addAll(index.getBaseIndexKey(), ArrayUtils.addAll(LogDelim, index.getBytesForData(bucket)));
+	}
+
+	protected byte[] getBytesForEvent(IndexChangeEvent<Long> event) {
+
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(64);
+			DataOutputStream dos = new DataOutputStream(bos);
+			dos.writeByte(event.getType().ordinal());
+			dos.writeLong(event.getIndex());
+			writeNullable(dos, event.getValue());
+			writeNullable(dos, event.getBoundary());
+			dos.writeLong(event.getSequence());
+			dos.writeLong(event.getTimestamp());
+			dos.close();
+			return bos.toByteArray();
+		}
+		catch (IOException e) {
+			throw new IllegalArgumentException("Unknown error while serializing IndexChangeEvent.");
+		}
+	}
+
+	protected IndexChangeEvent<Long> getEventForBytes(long eventId, byte[] raw) {
+
+		try {
+			DataInputStream dis = new DataInputStream(new ByteArrayInputStream(raw));
+			IndexChangeEvent.Type type = IndexChangeEvent.Type.values()[dis.readByte()];
+			long key = dis.readLong();
+			Long value = readNullable(dis);
+			Long boundary = readNullable(dis);
+			return new IndexChangeEvent<Long>(type, key, value, boundary, dis.readLong(), dis.readLong(), eventId);
+		}
+		catch (IOException e) {
+			throw new IllegalArgumentException("Invalid raw byte[] for IndexChangeEvent.");
+		}
+	}
+
+	private static void writeNullable(DataOutputStream dos, Long value) throws IOException {
+		dos.writeBoolean(value != null);
+
+		if (value != null)
+			dos.writeLong(value);
+	}
+
+	private static Long readNullable(DataInputStream dis) throws IOException {
+		return dis.readBoolean() ? dis.readLong() : null;
+	}
+
+	public long getBucketMillis() {
+		return bucketMillis;
+	}
+
+	/**
+	 * Sets how far behind the clock readers stay, it should cover the clock
+	 * skew between writers and the time a write takes.
+	 */
+	public void setReadLagMillis(long readLagMillis) {
+		this.readLagMillis = readLagMillis;
+	}
+
+	public long getReadLagMillis() {
+		return readLagMillis;
+	}
+
+	/**
+	 * Sets the id of this writer, unique among the writers of the index. A
+	 * random id is used by default.
+	 */
+	public void setNodeId(int nodeId) {
+		if (nodeId < 0 || nodeId >= 1 << NODE_BITS) {
+			String msg = "The change log node id must be between 0 and " + ((1 << NODE_BITS) - 1);
+			log.error(msg);
+			throw new IllegalArgumentException(msg);
+		}
+
+		this.nodeId = nodeId;
+	}
+
+	public int getNodeId() {
+		return nodeId;
+	}
+}
@@ -0,0 +1,190 @@
+/*
+ * Eindex: Earnstone Sharded Column Index for Cassandra
+ *
+ * Copyright 2011 Corey Hulen, Earnstone Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.earnstone.index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Exports an entire index to a compact binary file using a parallel
+ * ShardScanner.
+ *
+ * The file starts with a magic number and format version followed by one
+ * record per index key: the varint length and bytes of the key, the varint
+ * number of values and the varint length and bytes of each value. A zero byte
+ * where a key length would be marks the end of the file.
+ */
+public class IndexExporter<T> {
+
+	public static final int MAGIC = 0x45495850;
+	public static final int VERSION = 1;
+
+	private static final Logger log = LoggerFactory.getLogger(IndexExporter.class);
+
+	private ShardedIndex<T> index;
+	private ShardScanner<T> scanner;
+
+	public IndexExporter(ShardedIndex<T> index) {
+		this.index = index;
+		this.scanner = new ShardScanner<T>(index);
+	}
+
+	/**
+	 * @return the number of index keys written.
+	 */
+	public long export(File file, boolean ordered) throws IOException {
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+
+			long count = scanner.scan(new IndexItemHandler<T>() {
+				public void handle(IndexItem<T> item) {
+					try {
+						writeData(out, item.getIndex());
+						writeVarInt(out, item.getValues().size());
+
+						for (T value : item.getValues()) {
+							writeData(out, value);
+						}
+					}
+					catch (IOException e) {
+						throw new IllegalStateException("Unable to write index export.", e);
+					}
+				}
+			}, ordered);
+
+			writeVarInt(out, 0);
+			out.flush();
+			return count;
+		}
+		catch (IllegalStateException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			else
+				throw e;
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads an export file written by this index type.
+	 *
+	 * @return the number of index keys read.
+	 */
+	public long read(File file, IndexItemHandler<T> handler) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				String msg = "Unknown index export format in '" + file + "'";
+				log.error(msg);
+				throw new IOException(msg);
+			}
+
+			long count = 0;
+
+			while (true) {
+				T key = readData(in);
+
+				if (key == null)
+					return count;
+
+				int size = readVarInt(in);
+				List<T> values = new ArrayList<T>(size);
+
+				for (int i = 0; i < size; i++) {
+					values.add(readData(in));
+				}
+
+				IndexItem<T> item = new IndexItem<T>();
+				item.setIndex(key);
+				item.setValues(values);
+				handler.handle(item);
+				count++;
+			}
+		}
+		catch (EOFException e) {
+			String msg = "Truncated index export '" + file + "'";
+			log.error(msg);
+			throw new IOException(msg);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	public ShardScanner<T> getScanner() {
+		return scanner;
+	}
+
+	private void writeData(DataOutputStream out, T data) throws IOException {
+		byte[] raw = index.getBytesForData(data);
+		writeVarInt(out, raw.length);
+		out.write(raw);
+	}
+
+	private T readData(DataInputStream in) throws IOException {
+		int length = readVarInt(in);
+
+		if (length == 0)
+			return null;
+
+		byte[] raw = new byte[length];
+		in.readFully(raw);
+		return index.getDataForBytes(raw);
+	}
+
+	private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+
+		out.writeByte(value);
+	}
+
+	private static int readVarInt(DataInputStream in) throws IOException {
+		int value = 0;
+
+		for (int shift = 0; shift < 32; shift += 7) {
+			byte b = in.readByte();
+			value |= (b & 0x7F) << shift;
+
+			if ((b & 0x80) == 0)
+				return value;
+		}
+
+		throw new IOException("Malformed varint in index export.");
+	}
+}
@@ -0,0 +1,283 @@
+/*
+ * Eindex: Earnstone Sharded Column Index for Cassandra
+ *
+ * Copyright 2011 Corey Hulen, Earnstone Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.earnstone.index;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import me.prettyprint.hector.api.exceptions.HectorException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.earnstone.index.store.IndexColumn;
+import com.earnstone.index.store.IndexMutation;
+import com.earnstone.index.store.IndexStore;
+
+/**
+ * Writes one entity change to several indexes of the same column family at
+ * once. The current columns of every affected index key are read with a
+ * single multiget and all the resulting mutations are sent in a single batch,
+ * instead of one read and one write per index.
+ * 
+ * Cassandra only applies a batch atomically per row, so a failed batch is
+ * retried as a whole. Every mutation is an insert or delete of a computed
+ * column so resending it is harmless.
+ */
+public class IndexGroup<T> {
+
+	private static final Logger log = LoggerFactory.getLogger(IndexGroup.class);
+
+	private List<ShardedIndex<T>> indexes;
+	private IndexStore<T> store;
+	private int retries = 3;
+
+	/**
+	 * A set of index keys to add the entity to and remove it from.
+	 */
+	public static class Change<T> {
+
+		private List<ShardedIndex<T>> indexes = new ArrayList<ShardedIndex<T>>();
+		private List<T> keys = new ArrayList<T>();
+		private List<Boolean> adds = new ArrayList<Boolean>();
+		private List<Boolean> changed = new ArrayList<Boolean>();
+
+		public Change<T> add(ShardedIndex<T> index, T key) {
+			return append(index, key, true);
+		}
+
+		public Change<T> remove(ShardedIndex<T> index, T key) {
+			return append(index, key, false);
+		}
+
+		/**
+		 * Moves the entity from oldKey to newKey, doing nothing if the keys
+		 * are equal.
+		 */
+		public Change<T> move(ShardedIndex<T> index, T oldKey, T newKey) {
+			if (oldKey != null && oldKey.equals(newKey))
+				return this;
+
+			if (oldKey != null)
+				remove(index, oldKey);
+
+			if (newKey != null)
+				add(index, newKey);
+
+			return this;
+		}
+
+		public int size() {
+			return keys.size();
+		}
+
+		private Change<T> append(ShardedIndex<T> index, T key, boolean add) {
+			indexes.add(index);
+			keys.add(key);
+			adds.add(add);
+			changed.add(false);
+			return this;
+		}
+	}
+
+	/**
+	 * @param indexes
+	 *            the member indexes, they must all be stored in the same store
+	 *            or column family.
+	 */
+	public IndexGroup(List<? extends ShardedIndex<T>> indexes) {
+		if (indexes == null || indexes.isEmpty()) {
+			String msg = "An index group needs at least one index.";
+			log.error(msg);
+			throw new IllegalArgumentException(msg);
+		}
+
+		ShardedIndex<T> first = indexes.get(0);
+
+		for (ShardedIndex<T> index : indexes) {
+			if (!isSameStore(first, index)) {
+				String msg = "Index '" + new String(index.getBaseIndexKey()) + "' is not stored with index '" + new String(first.getBaseIndexKey()) + "'";
+				log.error(msg);
+				throw new IllegalArgumentException(msg);
+			}
+		}
+
+		this.indexes = new ArrayList<ShardedIndex<T>>(indexes);
+		this.store = first.getStore();
+	}
+
+	private static <T> boolean isSameStore(ShardedIndex<T> a, ShardedIndex<T> b) {
+		if (a.getStore() == b.getStore())
+			return true;
+
+		return a.getColumnFamily() != null && a.getColumnFamily().equals(b.getColumnFamily()) && a.getKeyspace() != null && b.getKeyspace() != null
+				&& a.getKeyspace().getKeyspaceName().equals(b.getKeyspace().getKeyspaceName());
+	}
+
+	/**
+	 * Applies the change for the entity value to every member index in one
+	 * batch.
+	 */
+	public void apply(T value, Change<T> change) throws HectorException {
+		List<byte[]> shardKeys = new ArrayList<byte[]>();
+		for (int i = 0; i < change.size(); i++) {
+			shardKeys.add(change.indexes.get(i).getShardKeyForIndex(change.keys.get(i)));
+		}
+
+		List<IndexChangeEvent<T>> events = new ArrayList<IndexChangeEvent<T>>();
+		List<ShardedIndex<T>> sources = new ArrayList<ShardedIndex<T>>();
+		List<ReentrantLock> locks = ShardedIndex.lockShards(shardKeys);
+
+		try {
+			List<IndexMutation<T>> mutations = getMutations(value, change);
+
+			if (mutations.isEmpty())
+				return;
+
+			for (int attempt = 0;; attempt++) {
+				try {
+					store.mutate(mutations);
+					break;
+				}
+				catch (HectorException e) {
+					if (attempt >= retries)
+						throw e;
+
+					log.warn("Retrying index group batch of " + mutations.size() + " mutations", e);
+				}
+			}
+
+			for (int i = 0; i < change.size(); i++) {
+				if (!change.changed.get(i))
+					continue;
+
+				ShardedIndex<T> index = change.indexes.get(i);
+				IndexChangeEvent<T> event = index.createChangeEvent(change.adds.get(i) ? IndexChangeEvent.Type.ADD : IndexChangeEvent.Type.REMOVE, change.keys.get(i), value);
+
+				if (event != null) {
+					events.add(event);
+					sources.add(index);
+				}
+			}
+		}
+		finally {
+			ShardedIndex.unlockShards(locks);
+		}
+
+		for (int i = 0; i < events.size(); i++) {
+			sources.get(i).fireIndexChanged(events.get(i));
+		}
+	}
+
+	/**
+	 * @return the mutations applying the change for the entity value, in the
+	 *         order they must be written.
+	 */
+	public List<IndexMutation<T>> getMutations(T value, Change<T> change) {
+		// shard row -> index key -> current column
+		Map<ByteBuffer, Map<T, byte[]>> columns = new LinkedHashMap<ByteBuffer, Map<T, byte[]>>();
+		List<T> names = new ArrayList<T>();
+
+		for (int i = 0; i < change.size(); i++) {
+			ShardedIndex<T> index = change.indexes.get(i);
+
+			if (!indexes.contains(index)) {
+				String msg = "Index '" + new String(index.getBaseIndexKey()) + "' is not a member of this index group.";
+				log.error(msg);
+				throw new IllegalArgumentException(msg);
+			}
+
+			columns.put(ByteBuffer.wrap(index.getShardKeyForIndex(change.keys.get(i))), new HashMap<T, byte[]>());
+
+			if (!names.contains(change.keys.get(i)))
+				names.add(change.keys.get(i));
+		}
+
+		List<IndexMutation<T>> mutations = new ArrayList<IndexMutation<T>>();
+
+		if (columns.isEmpty())
+			return mutations;
+
+		List<byte[]> rowKeys = new ArrayList<byte[]>();
+		for (ByteBuffer rowKey : columns.keySet()) {
+			rowKeys.add(rowKey.array());
+		}
+
+		List<List<IndexColumn<T>>> rows = store.multiget(rowKeys, names);
+
+		for (int i = 0; i < rowKeys.size(); i++) {
+			Map<T, byte[]> row = columns.get(ByteBuffer.wrap(rowKeys.get(i)));
+
+			for (IndexColumn<T> column : rows.get(i)) {
+				row.put(column.getName(), column.getValue());
+			}
+		}
+
+		for (int i = 0; i < change.size(); i++) {
+			ShardedIndex<T> index = change.indexes.get(i);
+			T key = change.keys.get(i);
+			Map<T, byte[]> row = columns.get(ByteBuffer.wrap(index.getShardKeyForIndex(key)));
+			byte[] raw = row.get(key);
+			int size = mutations.size();
+
+			if (change.adds.get(i))
+				row.put(key, index.getMutationsForAdd(key, value, raw, mutations));
+			else if (isStoredAt(index, key, value, raw))
+				row.put(key, index.getMutationsForRemove(key, value, raw, mutations));
+
+			change.changed.set(i, mutations.size() > size);
+		}
+
+		return mutations;
+	}
+
+	/**
+	 * A single valued key only holds this entity if the value matches, other
+	 * entities stored at the key must not be removed. A multi valued key holds
+	 * it if its sub-shard row does.
+	 */
+	private boolean isStoredAt(ShardedIndex<T> index, T key, T value, byte[] raw) {
+		if (raw == null || raw.length == 0)
+			return true;
+		else if (Arrays.equals(index.getEmptyValue(), raw))
+			return store.get(index.getSubShardKeyForIndex(key), value) != null;
+		else
+			return Arrays.equals(index.getBytesForData(value), raw);
+	}
+
+	public List<ShardedIndex<T>> getIndexes() {
+		return indexes;
+	}
+
+	/**
+	 * Sets the number of times a failed batch is resent before giving up.
+	 */
+	public void setRetries(int retries) {
+		this.retries = retries;
+	}
+
+	public int getRetries() {
+		return retries;
+	}
+}
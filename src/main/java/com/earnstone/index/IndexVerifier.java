@@ -0,0 +1,321 @@
+/*
+ * Eindex: Earnstone Sharded Column Index for Cassandra
+ *
+ * Copyright 2011 Corey Hulen, Earnstone Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.earnstone.index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import me.prettyprint.hector.api.exceptions.HectorException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.earnstone.index.store.IndexColumn;
+import com.earnstone.index.store.IndexMutation;
+
+/**
+ * Checks the shard rows of an index for the leftovers of interrupted writes
+ * and boundary changes, optionally repairing them. Shard rows are checked in
+ * parallel on the fan-out executor of the index, a page at a time, with an
+ * optional page rate limit so it can run against a live cluster.
+ * 
+ * The problems found are:
+ * <ul>
+ * <li>dangling markers: a multi-value marker whose sub-shard row is empty, the
+ * marker is removed.</li>
+ * <li>orphan sub-shards: a single value whose sub-shard row already holds that
+ * value because addToIndex stopped before writing the marker, the marker is
+ * written so the sub-shard values are used.</li>
+ * <li>misrouted keys: keys stored in a shard row other than the one their
+ * boundary routes to, they are moved to the right row.</li>
+ * </ul>
+ * 
+ * Sub-shard rows for keys that are missing from the shard rows entirely can
+ * only be found by scanning every row key of the column family and are not
+ * checked.
+ */
+public class IndexVerifier<T> {
+
+	private static final Logger log = LoggerFactory.getLogger(IndexVerifier.class);
+
+	private ShardedIndex<T> index;
+	private int pageSize = 1000;
+	private int maxPagesPerSecond = 0;
+	// System.nanoTime the next page may be read at, 0 before the first page
+	private long nextPageAt;
+
+	/**
+	 * The problems found by a verification run.
+	 */
+	public static class Report<T> {
+
+		private AtomicLong keysChecked = new AtomicLong();
+		private AtomicLong repaired = new AtomicLong();
+		private List<T> danglingMarkers = Collections.synchronizedList(new ArrayList<T>());
+		private List<T> orphanSubShards = Collections.synchronizedList(new ArrayList<T>());
+		private List<T> misroutedKeys = Collections.synchronizedList(new ArrayList<T>());
+
+		public long getKeysChecked() {
+			return keysChecked.get();
+		}
+
+		/**
+		 * @return the number of problems fixed, zero unless repairing.
+		 */
+		public long getRepaired() {
+			return repaired.get();
+		}
+
+		public List<T> getDanglingMarkers() {
+			return danglingMarkers;
+		}
+
+		public List<T> getOrphanSubShards() {
+			return orphanSubShards;
+		}
+
+		public List<T> getMisroutedKeys() {
+			return misroutedKeys;
+		}
+
+		public long getProblemCount() {
+			return danglingMarkers.size() + orphanSubShards.size() + misroutedKeys.size();
+		}
+
+		@Override
+		public String toString() {
+			return "keys=" + getKeysChecked() + " danglingMarkers=" + danglingMarkers.size() + " orphanSubShards=" + orphanSubShards.size() + " misroutedKeys="
+					+ misroutedKeys.size() + " repaired=" + getRepaired();
+		}
+	}
+
+	public IndexVerifier(ShardedIndex<T> index) {
+		this.index = index;
+	}
+
+	/**
+	 * Checks every shard row of the index.
+	 * 
+	 * @param repair
+	 *            if true the problems of each page are fixed with one batch
+	 *            mutation.
+	 */
+	public Report<T> verify(final boolean repair) {
+		final Report<T> report = new Report<T>();
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+
+		for (final byte[] shardKey : index.getShardKeys()) {
+			tasks.add(new Callable<Object>() {
+				public Object call() {
+					verifyShard(shardKey, repair, report);
+					return null;
+				}
+			});
+		}
+
+		try {
+			index.getFanOutExecutor().invokeAll(tasks);
+		}
+		catch (RuntimeException e) {
+			log.error("Failed verifying shard of index '" + new String(index.getBaseIndexKey()) + "'", e);
+			throw e;
+		}
+
+		if (report.getProblemCount() > 0)
+			log.warn("Index '" + new String(index.getBaseIndexKey()) + "' verified with problems: " + report);
+		else
+			log.info("Index '" + new String(index.getBaseIndexKey()) + "' verified: " + report);
+
+		return report;
+	}
+
+	protected void verifyShard(final byte[] shardKey, final boolean repair, final Report<T> report) {
+		throttle();
+
+		index.forEachPage(shardKey, pageSize, new ShardedIndex.ColumnPageHandler<T>() {
+			public void handle(List<IndexColumn<T>> columns) {
+				List<IndexMutation<T>> mutations = new ArrayList<IndexMutation<T>>();
+				List<IndexColumn<T>> singles = new ArrayList<IndexColumn<T>>();
+				List<IndexColumn<T>> misrouted = new ArrayList<IndexColumn<T>>();
+				List<T> markers = new ArrayList<T>();
+
+				for (IndexColumn<T> column : columns) {
+					report.keysChecked.incrementAndGet();
+
+					if (!Arrays.equals(shardKey, index.getShardKeyForIndex(column.getName())))
+						misrouted.add(column);
+					else if (Arrays.equals(index.getEmptyValue(), column.getValue()))
+						checkMarker(column, markers, report);
+					else if (column.getValue() != null && column.getValue().length > 0)
+						singles.add(column);
+				}
+
+				checkSingles(shardKey, singles, mutations, report);
+				checkMisrouted(shardKey, misrouted, mutations, report);
+
+				if (repair)
+					recheckMarkers(shardKey, markers, mutations);
+
+				if (repair && !mutations.isEmpty()) {
+					index.getStore().mutate(mutations);
+					report.repaired.addAndGet(mutations.size());
+				}
+
+				// paces the read of the next page
+				throttle();
+			}
+		});
+	}
+
+	private void checkMarker(IndexColumn<T> column, List<T> markers, Report<T> report) {
+		if (index.getStore().count(index.getSubShardKeyForIndex(column.getName()), null, null) == 0) {
+			report.danglingMarkers.add(column.getName());
+			markers.add(column.getName());
+		}
+	}
+
+	/**
+	 * Counts the sub-shard rows of the dangling markers again right before the
+	 * repair batch, so a marker an addToIndex promoted the key to since the
+	 * page was read is kept. An add landing between this count and the batch
+	 * still loses its marker, leaving its values unreachable until the key is
+	 * written again, so repairs are best run while the index is quiet.
+	 */
+	private void recheckMarkers(byte[] shardKey, List<T> markers, List<IndexMutation<T>> mutations) {
+		for (T marker : markers) {
+			if (index.getStore().count(index.getSubShardKeyForIndex(marker), null, null) == 0)
+				mutations.add(IndexMutation.delete(shardKey, marker));
+		}
+	}
+
+	/**
+	 * Looks the single values up in their sub-shard rows with one multiget.
+	 */
+	private void checkSingles(byte[] shardKey, List<IndexColumn<T>> singles, List<IndexMutation<T>> mutations, Report<T> report) {
+		if (singles.isEmpty())
+			return;
+
+		List<byte[]> subShardKeys = new ArrayList<byte[]>(singles.size());
+		List<T> values = new ArrayList<T>(singles.size());
+		List<T> names = new ArrayList<T>(singles.size());
+
+		for (IndexColumn<T> column : singles) {
+			T value = index.getDataForBytes(column.getValue());
+			subShardKeys.add(index.getSubShardKeyForIndex(column.getName()));
+			values.add(value);
+
+			if (!names.contains(value))
+				names.add(value);
+		}
+
+		List<List<IndexColumn<T>>> rows = index.getStore().multiget(subShardKeys, names);
+
+		for (int i = 0; i < singles.size(); i++) {
+			for (IndexColumn<T> column : rows.get(i)) {
+				if (column.getName().equals(values.get(i))) {
+					report.orphanSubShards.add(singles.get(i).getName());
+					mutations.add(IndexMutation.insert(shardKey, singles.get(i).getName(), index.getEmptyValue()));
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Moves misrouted keys to their shard row unless that row already holds a
+	 * different column for the key, which is left for manual repair.
+	 */
+	private void checkMisrouted(byte[] shardKey, List<IndexColumn<T>> misrouted, List<IndexMutation<T>> mutations, Report<T> report) {
+		for (IndexColumn<T> column : misrouted) {
+			report.misroutedKeys.add(column.getName());
+			byte[] rightKey = index.getShardKeyForIndex(column.getName());
+			byte[] current = index.getRawDataForIndex(rightKey, column.getName());
+
+			if (current == null || current.length == 0) {
+				mutations.add(IndexMutation.insert(rightKey, column.getName(), column.getValue()));
+				mutations.add(IndexMutation.delete(shardKey, column.getName()));
+			}
+			else if (Arrays.equals(current, column.getValue())) {
+				mutations.add(IndexMutation.delete(shardKey, column.getName()));
+			}
+			else {
+				log.warn("Misrouted key '" + column.getName() + "' of index '" + new String(index.getBaseIndexKey()) + "' conflicts with its shard row and was not moved");
+			}
+		}
+	}
+
+	/**
+	 * Blocks until the next page may be read.
+	 */
+	private void throttle() {
+		if (maxPagesPerSecond <= 0)
+			return;
+
+		long wait;
+
+		synchronized (this) {
+			long interval = 1000000000L / maxPagesPerSecond;
+			long now = System.nanoTime();
+
+			if (nextPageAt == 0 || now - nextPageAt > 0)
+				nextPageAt = now;
+
+			wait = nextPageAt - now;
+			nextPageAt += interval;
+		}
+
+		if (wait > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(wait);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new HectorException("Interrupted while verifying index.", e);
+			}
+		}
+	}
+
+	/**
+	 * Sets the columns read per page, see ShardedIndex.forEachPage.
+	 */
+	public void setPageSize(int pageSize) {
+		ShardedIndex.checkPageSize(pageSize);
+		this.pageSize = pageSize;
+	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * Limits the pages read per second across all threads, zero or less for
+	 * no limit.
+	 */
+	public void setMaxPagesPerSecond(int maxPagesPerSecond) {
+		this.maxPagesPerSecond = maxPagesPerSecond;
+	}
+
+	public int getMaxPagesPerSecond() {
+		return maxPagesPerSecond;
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * Eindex: Earnstone Sharded Column Index for Cassandra
+ *
+ * Copyright 2011 Corey Hulen, Earnstone Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.earnstone.index;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Long shard boundaries stored as a sorted array of longs in a direct
+ * ByteBuffer and searched with a binary search. Only the buffer object lives
+ * on the heap, so millions of boundaries add nothing for the garbage
+ * collector to trace.
+ */
+public class OffHeapLongShardBoundaries implements ShardBoundaries<Long> {
+
+	private ByteBuffer buffer;
+	private int size;
+
+	public OffHeapLongShardBoundaries(Collection<Long> boundaries) {
+		long[] sorted = new long[boundaries.size()];
+		int i = 0;
+
+		for (Long boundary : boundaries) {
+			sorted[i++] = boundary;
+		}
+
+		Arrays.sort(sorted);
+		buffer = ByteBuffer.allocateDirect(sorted.length * 8);
+
+		for (long boundary : sorted) {
+			if (size == 0 || boundary != buffer.getLong((size - 1) * 8)) {
+				buffer.putLong(size * 8, boundary);
+				size++;
+			}
+		}
+	}
+
+	/**
+	 * Copies raw big-endian boundaries straight into the buffer without boxing
+	 * them, as long as they are already sorted.
+	 */
+	public OffHeapLongShardBoundaries(byte[] raw) {
+		if (raw.length % 8 != 0)
+			throw new IllegalArgumentException("Invalid raw byte[] size should be 8 bytes per long.");
+
+		buffer = ByteBuffer.allocateDirect(raw.length);
+		buffer.put(raw);
+		size = raw.length / 8;
+
+		for (int i = 1; i < size; i++) {
+			if (get(i - 1) >= get(i)) {
+				long[] sorted = new long[size];
+
+				for (int j = 0; j < size; j++) {
+					sorted[j] = get(j);
+				}
+
+				Arrays.sort(sorted);
+				size = 0;
+
+				for (long boundary : sorted) {
+					if (size == 0 || boundary != get(size - 1))
+						buffer.putLong(size++ * 8, boundary);
+				}
+
+				break;
+			}
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public Long first() {
+		return size == 0 ? null : get(0);
+	}
+
+	public Long last() {
+		return size == 0 ? null : get(size - 1);
+	}
+
+	public Long ceiling(Long key) {
+		int i = search(key);
+		return i < 0 ? at(-i - 1) : at(i);
+	}
+
+	public Long higher(Long key) {
+		int i = search(key);
+		return i < 0 ? at(-i - 1) : at(i + 1);
+	}
+
+	public Long lower(Long key) {
+		int i = search(key);
+		return i < 0 ? at(-i - 2) : at(i - 1);
+	}
+
+	public Iterator<Long> iterator() {
+		return new Iterator<Long>() {
+			private int next;
+
+			public boolean hasNext() {
+				return next < size;
+			}
+
+			public Long next() {
+				if (next >= size)
+					throw new NoSuchElementException();
+
+				return get(next++);
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	private long get(int i) {
+		return buffer.getLong(i * 8);
+	}
+
+	private Long at(int i) {
+		return i < 0 || i >= size ? null : get(i);
+	}
+
+	/**
+	 * @return the position of key or (-(insertion point) - 1) like
+	 *         Arrays.binarySearch.
+	 */
+	private int search(long key) {
+		int low = 0;
+		int high = size - 1;
+
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			long value = get(mid);
+
+			if (value < key)
+				low = mid + 1;
+			else if (value > key)
+				high = mid - 1;
+			else
+				return mid;
+		}
+
+		return -(low + 1);
+	}
+}
@@ -0,0 +1,54 @@
+/*
+ * Eindex: Earnstone Sharded Column Index for Cassandra
+ *
+ * Copyright 2011 Corey Hulen, Earnstone Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.earnstone.index;
+
+/**
+ * The sorted shard boundaries of an index. A key belongs to the shard of the
+ * smallest boundary greater or equal to it, or to the overflow shard if there
+ * is none. Implementations are immutable so they can be swapped in while
+ * other threads route keys.
+ */
+public interface ShardBoundaries<T> extends Iterable<T> {
+
+	public int size();
+
+	/**
+	 * @return the smallest boundary or null if there are none.
+	 */
+	public T first();
+
+	/**
+	 * @return the largest boundary or null if there are none.
+	 */
+	public T last();
+
+	/**
+	 * @return the smallest boundary greater or equal to key or null.
+	 */
+	public T ceiling(T key);
+
+	/**
+	 * @return the smallest boundary strictly greater than key or null.
+	 */
+	public T higher(T key);
+
+	/**
+	 * @return the largest boundary strictly less than key or null.
+	 */
+	public T lower(T key);
+}
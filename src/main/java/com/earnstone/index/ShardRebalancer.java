@@ -0,0 +1,167 @@
+/*
+ * Eindex: Earnstone Sharded Column Index for Cassandra
+ *
+ * Copyright 2011 Corey Hulen, Earnstone Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.earnstone.index;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.earnstone.index.store.IndexColumn;
+import com.earnstone.index.store.IndexMutation;
+
+/**
+ * Merges adjacent under-filled shards of an index. Removing a boundary sends
+ * its keys to the next higher boundary (or the overflow shard past the last
+ * boundary), so the columns of every removed shard row are moved into the row
+ * of the next surviving boundary before the compacted boundary list is
+ * published.
+ *
+ * The rebalancer must be run while writers are quiet. Columns written to a
+ * removed shard row during the move are lost when the row is deleted, and
+ * other processes using the same index keep routing to the old boundaries
+ * until they call reloadShardsCache.
+ */
+public class ShardRebalancer<T> {
+
+	private static final Logger log = LoggerFactory.getLogger(ShardRebalancer.class);
+
+	private ShardedIndex<T> index;
+	private int pageSize = 1000;
+
+	public ShardRebalancer(ShardedIndex<T> index) {
+		this.index = index;
+	}
+
+	/**
+	 * Merges every shard holding less than minShardCount columns into the
+	 * next higher shard as long as the merged shard stays at or under
+	 * maxMergedCount columns. The last boundary is always kept.
+	 *
+	 * @return the number of boundaries removed.
+	 */
+	public int rebalance(long minShardCount, long maxMergedCount) {
+		if (minShardCount > maxMergedCount) {
+			String msg = "minShardCount cannot be larger than maxMergedCount.";
+			log.error(msg);
+			throw new IllegalArgumentException(msg);
+		}
+
+		// counted without saving so the sampled statistics of the last full
+		// collection are kept
+		ShardStatistics<T> stats = index.countShards(0);
+		List<T> boundaries = new ArrayList<T>(stats.getShardCounts().keySet());
+
+		// removed boundary -> surviving boundary it merges into (null is the
+		// overflow shard)
+		Map<T, T> merges = new LinkedHashMap<T, T>();
+		List<T> pending = new ArrayList<T>();
+		long carried = 0;
+
+		for (int i = 0; i <= boundaries.size(); i++) {
+			boolean overflow = i == boundaries.size();
+			T boundary = overflow ? null : boundaries.get(i);
+			long count = carried + (overflow ? stats.getOverflowShardCount() : stats.getShardCounts().get(boundary));
+			long next = overflow ? -1 : (i + 1 < boundaries.size() ? stats.getShardCounts().get(boundaries.get(i + 1)) : stats.getOverflowShardCount());
+
+			if (!overflow && count < minShardCount && count + next <= maxMergedCount) {
+				pending.add(boundary);
+				carried = count;
+			}
+			else {
+				for (T removed : pending) {
+					merges.put(removed, boundary);
+				}
+
+				pending.clear();
+				carried = 0;
+			}
+		}
+
+		// keep the last boundary, with none left initializeShardBoundries would
+		// succeed again and route keys away from the overflow row
+		if (!boundaries.isEmpty() && merges.size() == boundaries.size()) {
+			T kept = boundaries.get(boundaries.size() - 1);
+			merges.remove(kept);
+
+			for (Map.Entry<T, T> merge : merges.entrySet()) {
+				if (merge.getValue() == null)
+					merge.setValue(kept);
+			}
+		}
+
+		if (merges.isEmpty())
+			return 0;
+
+		List<T> compacted = new ArrayList<T>();
+		for (T boundary : boundaries) {
+			if (!merges.containsKey(boundary))
+				compacted.add(boundary);
+		}
+
+		for (Map.Entry<T, T> merge : merges.entrySet()) {
+			moveColumns(merge.getKey(), merge.getValue());
+		}
+
+		index.publishShardBoundries(compacted);
+
+		// writers are quiet, so the old rows hold nothing the move missed
+		for (Map.Entry<T, T> merge : merges.entrySet()) {
+			deleteShard(merge.getKey());
+		}
+
+		log.info("Merged " + merges.size() + " shards, " + compacted.size() + " boundaries remain for index '" + new String(index.getBaseIndexKey()) + "'");
+		return merges.size();
+	}
+
+	protected void moveColumns(T fromBoundary, T toBoundary) {
+		byte[] fromKey = index.getShardKeyForBoundary(fromBoundary);
+		final byte[] toKey = toBoundary == null ? index.emptyIndexKey : index.getShardKeyForBoundary(toBoundary);
+
+		index.forEachPage(fromKey, pageSize, new ShardedIndex.ColumnPageHandler<T>() {
+			public void handle(List<IndexColumn<T>> columns) {
+				List<IndexMutation<T>> mutations = new ArrayList<IndexMutation<T>>();
+
+				for (IndexColumn<T> column : columns) {
+					mutations.add(IndexMutation.insert(toKey, column.getName(), column.getValue()));
+				}
+
+				index.getStore().mutate(mutations);
+			}
+		});
+	}
+
+	protected void deleteShard(T boundary) {
+		index.removeIndex(index.getShardKeyForBoundary(boundary), null);
+	}
+
+	/**
+	 * Sets the columns read per page, see ShardedIndex.forEachPage.
+	 */
+	public void setPageSize(int pageSize) {
+		ShardedIndex.checkPageSize(pageSize);
+		this.pageSize = pageSize;
+	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+}
@@ -0,0 +1,267 @@
+/*
+ * Eindex: Earnstone Sharded Column Index for Cassandra
+ *
+ * Copyright 2011 Corey Hulen, Earnstone Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.earnstone.index;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import me.prettyprint.hector.api.exceptions.HectorException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.earnstone.index.store.IndexColumn;
+
+/**
+ * Reads an entire index by splitting it along the shard boundaries and
+ * scanning the shard rows in parallel. Each shard row is paged independently
+ * so a full scan runs at the speed of the number of shards rather than a
+ * single row.
+ */
+public class ShardScanner<T> {
+
+	private static final Logger log = LoggerFactory.getLogger(ShardScanner.class);
+
+	private ShardedIndex<T> index;
+	private int concurrency = 4;
+	private int pageSize = 1000;
+	private int subIndexLimit = 1000;
+
+	public ShardScanner(ShardedIndex<T> index) {
+		this.index = index;
+	}
+
+	/**
+	 * Scans every shard row of the index with concurrency workers on the
+	 * fan-out executor of the index. A worker picks up the next shard row as
+	 * soon as it finishes one.
+	 *
+	 * @param handler
+	 *            receives every item. Calls to the handler are serialized so
+	 *            it does not need to be thread safe.
+	 * @param ordered
+	 *            if true the items are delivered in global index key order,
+	 *            which buffers up to concurrency shard rows in memory.
+	 * @return the number of items delivered.
+	 */
+	public long scan(IndexItemHandler<T> handler, boolean ordered) {
+		final Window window = new Window(index.getShardKeys(), handler, ordered);
+		List<Callable<Object>> workers = new ArrayList<Callable<Object>>();
+
+		for (int i = 0; i < Math.min(concurrency, window.shardKeys.size()); i++) {
+			workers.add(new Callable<Object>() {
+				public Object call() {
+					window.work();
+					return null;
+				}
+			});
+		}
+
+		invokeAll(workers);
+		return window.count.get();
+	}
+
+	/**
+	 * The shard rows of one scan. Rows are claimed in order and no row is
+	 * claimed concurrency rows or more ahead of the first one not yet
+	 * delivered.
+	 */
+	private class Window {
+
+		private List<byte[]> shardKeys;
+		private IndexItemHandler<T> handler;
+		private boolean ordered;
+		private List<List<IndexItem<T>>> buffered;
+		private int next;
+		private int delivered;
+		private boolean delivering;
+		private boolean failed;
+		private AtomicLong count = new AtomicLong();
+
+		Window(List<byte[]> shardKeys, IndexItemHandler<T> handler, boolean ordered) {
+			this.shardKeys = shardKeys;
+			this.handler = handler;
+			this.ordered = ordered;
+
+			if (ordered)
+				buffered = new ArrayList<List<IndexItem<T>>>(Collections.<List<IndexItem<T>>> nCopies(shardKeys.size(), null));
+		}
+
+		void work() {
+
+			try {
+				int shard;
+
+				while ((shard = claim()) >= 0) {
+					if (ordered)
+						finish(shard, readShard(shardKeys.get(shard)));
+					else
+						scanShard(shardKeys.get(shard), new IndexItemHandler<T>() {
+							public void handle(IndexItem<T> item) {
+								synchronized (handler) {
+									handler.handle(item);
+								}
+
+								count.incrementAndGet();
+							}
+						});
+				}
+			}
+			catch (RuntimeException e) {
+				synchronized (this) {
+					failed = true;
+					notifyAll();
+				}
+
+				throw e;
+			}
+		}
+
+		/**
+		 * @return the next shard row to read or -1 when there are none left.
+		 */
+		synchronized int claim() {
+
+			try {
+				while (ordered && !failed && next < shardKeys.size() && next >= delivered + concurrency) {
+					wait();
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new HectorException("Interrupted while scanning index shards.", e);
+			}
+
+			return failed || next >= shardKeys.size() ? -1 : next++;
+		}
+
+		/**
+		 * Buffers the items of a shard row and, unless another worker is
+		 * already at it, delivers every buffered row that is next in order.
+		 * The handler runs outside the lock so the other workers keep going.
+		 */
+		void finish(int shard, List<IndexItem<T>> items) {
+
+			synchronized (this) {
+				buffered.set(shard, items);
+
+				if (delivering)
+					return;
+
+				delivering = true;
+			}
+
+			while (true) {
+				List<IndexItem<T>> head;
+
+				synchronized (this) {
+					if (delivered >= shardKeys.size() || buffered.get(delivered) == null) {
+						delivering = false;
+						return;
+					}
+
+					head = buffered.set(delivered, null);
+				}
+
+				for (IndexItem<T> item : head) {
+					handler.handle(item);
+					count.incrementAndGet();
+				}
+
+				synchronized (this) {
+					delivered++;
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	private List<IndexItem<T>> readShard(byte[] shardKey) {
+		final List<IndexItem<T>> list = new ArrayList<IndexItem<T>>();
+
+		scanShard(shardKey, new IndexItemHandler<T>() {
+			public void handle(IndexItem<T> item) {
+				list.add(item);
+			}
+		});
+
+		return list;
+	}
+
+	protected void scanShard(byte[] shardKey, final IndexItemHandler<T> handler) {
+		index.forEachPage(shardKey, pageSize, new ShardedIndex.ColumnPageHandler<T>() {
+			public void handle(List<IndexColumn<T>> columns) {
+				for (IndexItem<T> item : index.getItemsForColumns(columns, subIndexLimit)) {
+					handler.handle(item);
+				}
+			}
+		});
+	}
+
+	private <V> List<V> invokeAll(List<Callable<V>> tasks) {
+
+		try {
+			return index.getFanOutExecutor().invokeAll(tasks);
+		}
+		catch (RuntimeException e) {
+			log.error("Failed scanning shard of index '" + new String(index.getBaseIndexKey()) + "'", e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Sets the shard rows read at the same time, further capped by the
+	 * fan-out concurrency of the index.
+	 */
+	public void setConcurrency(int concurrency) {
+		if (concurrency < 1) {
+			String msg = "The scan concurrency must be at least 1.";
+			log.error(msg);
+			throw new IllegalArgumentException(msg);
+		}
+
+		this.concurrency = concurrency;
+	}
+
+	public int getConcurrency() {
+		return concurrency;
+	}
+
+	/**
+	 * Sets the columns read per page, see ShardedIndex.forEachPage.
+	 */
+	public void setPageSize(int pageSize) {
+		ShardedIndex.checkPageSize(pageSize);
+		this.pageSize = pageSize;
+	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	public void setSubIndexLimit(int subIndexLimit) {
+		this.subIndexLimit = subIndexLimit;
+	}
+
+	public int getSubIndexLimit() {
+		return subIndexLimit;
+	}
+}
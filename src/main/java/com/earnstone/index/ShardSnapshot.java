@@ -0,0 +1,168 @@
+/*
+ * Eindex: Earnstone Sharded Column Index for Cassandra
+ *
+ * Copyright 2011 Corey Hulen, Earnstone Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.earnstone.index;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A local on-disk copy of the raw shard boundary list. The file is memory
+ * mapped when loading so a cold start does not need to wait on Cassandra.
+ *
+ * The layout is a fixed header (magic, format version, payload length, CRC32
+ * of the payload) followed by the raw boundary list exactly as it is stored in
+ * the shard column.
+ */
+public class ShardSnapshot {
+
+	public static final int MAGIC = 0x45494458;
+	public static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 20;
+	private static final Logger log = LoggerFactory.getLogger(ShardSnapshot.class);
+
+	private File file;
+
+	public ShardSnapshot(File file) {
+		if (file == null) {
+			String msg = "Shard snapshot file cannot be null.";
+			log.error(msg);
+			throw new IllegalArgumentException(msg);
+		}
+
+		this.file = file;
+	}
+
+	/**
+	 * Loads the raw boundary list from the snapshot file.
+	 *
+	 * @return the raw boundary list or null if the file is missing, of an
+	 *         unknown version or corrupt.
+	 */
+	public byte[] load() {
+		if (!file.isFile() || file.length() < HEADER_SIZE)
+			return null;
+
+		RandomAccessFile raf = null;
+
+		try {
+			raf = new RandomAccessFile(file, "r");
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			int magic = buffer.getInt();
+			int version = buffer.getInt();
+			int length = buffer.getInt();
+			long checksum = buffer.getLong();
+
+			if (magic != MAGIC || version != VERSION) {
+				log.warn("Ignoring shard snapshot '" + file + "' with unknown format version " + version);
+				return null;
+			}
+
+			if (length < 0 || length != buffer.remaining()) {
+				log.warn("Ignoring truncated shard snapshot '" + file + "'");
+				return null;
+			}
+
+			byte[] raw = new byte[length];
+			buffer.get(raw);
+
+			if (checksum != checksum(raw)) {
+				log.warn("Ignoring corrupt shard snapshot '" + file + "'");
+				return null;
+			}
+
+			return raw;
+		}
+		catch (IOException e) {
+			log.warn("Unable to read shard snapshot '" + file + "'", e);
+			return null;
+		}
+		finally {
+			close(raf);
+		}
+	}
+
+	/**
+	 * Writes the raw boundary list to a temporary file and then moves it over
+	 * the snapshot so readers never see a partially written file.
+	 */
+	public void save(byte[] raw) {
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = null;
+
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC);
+			header.putInt(VERSION);
+			header.putInt(raw.length);
+			header.putLong(checksum(raw));
+
+			out = new FileOutputStream(tmp);
+			out.write(header.array());
+			out.write(raw);
+			out.getFD().sync();
+			out.close();
+			out = null;
+
+			if (!tmp.renameTo(file)) {
+				file.delete();
+
+				if (!tmp.renameTo(file))
+					throw new IOException("Unable to rename '" + tmp + "' to '" + file + "'");
+			}
+		}
+		catch (IOException e) {
+			log.warn("Unable to write shard snapshot '" + file + "'", e);
+		}
+		finally {
+			close(out);
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	private static long checksum(byte[] raw) {
+		CRC32 crc = new CRC32();
+		crc.update(raw);
+		return crc.getValue();
+	}
+
+	private static void close(Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			}
+			catch (IOException e) {
+			}
+		}
+	}
+}
@@ -0,0 +1,187 @@
+/*
+ * Eindex: Earnstone Sharded Column Index for Cassandra
+ *
+ * Copyright 2011 Corey Hulen, Earnstone Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.earnstone.index;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Approximate column counts for the shard rows of an index. Shard counts come
+ * from Cassandra column counts at the time of collection, the multi-value key
+ * counts are sampled from the first columns of each shard row.
+ */
+public class ShardStatistics<T> {
+
+	private long collectedAt;
+	private long overflowShardCount;
+	private TreeMap<T, Long> shardCounts = new TreeMap<T, Long>();
+	private Map<T, Long> keyValueCounts = new HashMap<T, Long>();
+
+	public static class Entry<T> {
+
+		private T key;
+		private long count;
+
+		public Entry(T key, long count) {
+			this.key = key;
+			this.count = count;
+		}
+
+		/**
+		 * @return the shard boundary or index key, null is the overflow shard
+		 *         past the last boundary.
+		 */
+		public T getKey() {
+			return key;
+		}
+
+		public long getCount() {
+			return count;
+		}
+	}
+
+	public void setCollectedAt(long collectedAt) {
+		this.collectedAt = collectedAt;
+	}
+
+	public long getCollectedAt() {
+		return collectedAt;
+	}
+
+	public void setOverflowShardCount(long overflowShardCount) {
+		this.overflowShardCount = overflowShardCount;
+	}
+
+	/**
+	 * @return the number of columns in the shard row past the last boundary.
+	 */
+	public long getOverflowShardCount() {
+		return overflowShardCount;
+	}
+
+	public void setShardCount(T boundary, long count) {
+		shardCounts.put(boundary, count);
+	}
+
+	public TreeMap<T, Long> getShardCounts() {
+		return shardCounts;
+	}
+
+	public void setKeyValueCount(T index, long count) {
+		keyValueCounts.put(index, count);
+	}
+
+	/**
+	 * @return the sampled multi-value index keys with their value counts.
+	 */
+	public Map<T, Long> getKeyValueCounts() {
+		return keyValueCounts;
+	}
+
+	public long getTotalCount() {
+		long total = overflowShardCount;
+
+		for (Long count : shardCounts.values()) {
+			total += count;
+		}
+
+		return total;
+	}
+
+	public double getMeanShardCount() {
+		return (double) getTotalCount() / (shardCounts.size() + 1);
+	}
+
+	/**
+	 * @return the ratio of the largest shard to the mean shard size, 1.0 is a
+	 *         perfectly even distribution.
+	 */
+	public double getSkew() {
+		double mean = getMeanShardCount();
+
+		if (mean == 0)
+			return 1.0;
+
+		List<Entry<T>> largest = getLargestShards(1);
+		return largest.get(0).getCount() / mean;
+	}
+
+	public List<Entry<T>> getLargestShards(int limit) {
+		List<Entry<T>> list = new ArrayList<Entry<T>>();
+
+		for (Map.Entry<T, Long> entry : shardCounts.entrySet()) {
+			list.add(new Entry<T>(entry.getKey(), entry.getValue()));
+		}
+
+		list.add(new Entry<T>(null, overflowShardCount));
+		return largest(list, limit);
+	}
+
+	public List<Entry<T>> getHeaviestKeys(int limit) {
+		List<Entry<T>> list = new ArrayList<Entry<T>>();
+
+		for (Map.Entry<T, Long> entry : keyValueCounts.entrySet()) {
+			list.add(new Entry<T>(entry.getKey(), entry.getValue()));
+		}
+
+		return largest(list, limit);
+	}
+
+	/**
+	 * @return a human readable report of the largest shards and the heaviest
+	 *         multi-value keys.
+	 */
+	public String getSkewReport(int limit) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("shards=").append(shardCounts.size() + 1);
+		sb.append(" columns=").append(getTotalCount());
+		sb.append(" mean=").append(String.format("%.1f", getMeanShardCount()));
+		sb.append(" skew=").append(String.format("%.2f", getSkew()));
+		sb.append("\nlargest shards:");
+
+		for (Entry<T> entry : getLargestShards(limit)) {
+			sb.append("\n  ").append(entry.getKey() == null ? "overflow" : entry.getKey().toString()).append(" = ").append(entry.getCount());
+		}
+
+		sb.append("\nheaviest keys:");
+
+		for (Entry<T> entry : getHeaviestKeys(limit)) {
+			sb.append("\n  ").append(entry.getKey()).append(" = ").append(entry.getCount());
+		}
+
+		return sb.toString();
+	}
+
+	private List<Entry<T>> largest(List<Entry<T>> list, int limit) {
+		Collections.sort(list, new Comparator<Entry<T>>() {
+			public int compare(Entry<T> o1, Entry<T> o2) {
+				return o1.getCount() < o2.getCount() ? 1 : (o1.getCount() == o2.getCount() ? 0 : -1);
+			}
+		});
+
+		if (list.size() > limit)
+			return new ArrayList<Entry<T>>(list.subList(0, limit));
+		else
+			return list;
+	}
+}
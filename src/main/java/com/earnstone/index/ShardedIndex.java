@@ -17,44 +17,76 @@
  */
 package com.earnstone.index;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.TreeMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.lang.ArrayUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import me.prettyprint.cassandra.serializers.BytesArraySerializer;
+import com.earnstone.index.store.HectorIndexStore;
+import com.earnstone.index.store.IndexColumn;
+import com.earnstone.index.store.IndexMutation;
+import com.earnstone.index.store.IndexStore;
+
 import me.prettyprint.hector.api.Cluster;
 import me.prettyprint.hector.api.Keyspace;
 import me.prettyprint.hector.api.Serializer;
-import me.prettyprint.hector.api.beans.ColumnSlice;
-import me.prettyprint.hector.api.beans.HColumn;
 import me.prettyprint.hector.api.ddl.ColumnFamilyDefinition;
 import me.prettyprint.hector.api.ddl.ColumnType;
 import me.prettyprint.hector.api.ddl.ComparatorType;
 import me.prettyprint.hector.api.ddl.KeyspaceDefinition;
 import me.prettyprint.hector.api.exceptions.HectorException;
-import me.prettyprint.hector.api.factory.HFactory;
-import me.prettyprint.hector.api.mutation.Mutator;
-import me.prettyprint.hector.api.query.ColumnQuery;
-import me.prettyprint.hector.api.query.QueryResult;
-import me.prettyprint.hector.api.query.SliceQuery;
 
 public abstract class ShardedIndex<T> {
 
 	private static byte[] Delim = { ':' };
 	private static byte[] SubDelim = { ':', ':' };
+	private static byte[] ReverseDelim = { ':', ':', ':' };
 	private static final Logger log = LoggerFactory.getLogger(ShardedIndex.class);
 
+	public static final int DEFAULT_FAN_OUT_CONCURRENCY = 16;
+
+	private static final int SHARD_LOCK_STRIPES = 256;
+	private static final ReentrantLock[] shardLocks = new ReentrantLock[SHARD_LOCK_STRIPES];
+
+	static {
+		for (int i = 0; i < SHARD_LOCK_STRIPES; i++) {
+			shardLocks[i] = new ReentrantLock();
+		}
+	}
+
 	protected Cluster cluster;
 	protected Keyspace keyspace;
 	protected String columnFamily;
+	protected IndexStore<T> store;
 	protected byte[] baseIndexKey;
 	protected byte[] emptyIndexKey;
-	protected TreeMap<T, T> shards;
+	protected volatile ShardBoundaries<T> shards;
+	protected final Object shardsLock = new Object();
+	protected ShardSnapshot snapshot;
+	private final boolean offHeapShardBoundaries;
+	protected boolean reverseMappingEnabled;
+	protected FanOutExecutor fanOut = new FanOutExecutor(DEFAULT_FAN_OUT_CONCURRENCY);
+	protected List<IndexChangeListener<T>> changeListeners = new CopyOnWriteArrayList<IndexChangeListener<T>>();
+	private ConcurrentHashMap<ByteBuffer, AtomicLong> shardSequences = new ConcurrentHashMap<ByteBuffer, AtomicLong>();
 
 	/**
 	 * Constructs a sharded index. It is expected that multiple indexes of the
@@ -78,16 +110,37 @@ public abstract class ShardedIndex<T> {
 	 *            the name of the index.
 	 */
 	protected ShardedIndex(Cluster cluster, Keyspace keyspace, String columnFamily, byte[] baseIndexKey) {
+		this(cluster, keyspace, columnFamily, baseIndexKey, null);
+	}
+
+	/**
+	 * Constructs a sharded index backed by a local shard boundary snapshot. If
+	 * the snapshot file is valid the boundaries are loaded from it immediately
+	 * and verified against Cassandra on a background thread, otherwise they
+	 * are read from Cassandra as usual. The snapshot is rewritten whenever the
+	 * boundaries change.
+	 * 
+	 * @param snapshotFile
+	 *            the local snapshot file or null to always read the
+	 *            boundaries from Cassandra.
+	 */
+	protected ShardedIndex(Cluster cluster, Keyspace keyspace, String columnFamily, byte[] baseIndexKey, File snapshotFile) {
+		this(cluster, keyspace, columnFamily, baseIndexKey, snapshotFile, false);
+	}
+
+	/**
+	 * @param offHeapShardBoundaries
+	 *            keeps the boundaries outside the heap for index types that
+	 *            support it, from the very first load.
+	 */
+	protected ShardedIndex(Cluster cluster, Keyspace keyspace, String columnFamily, byte[] baseIndexKey, File snapshotFile, boolean offHeapShardBoundaries) {
+		this.offHeapShardBoundaries = offHeapShardBoundaries;
 		this.cluster = cluster;
 		this.keyspace = keyspace;
 		this.columnFamily = columnFamily;
 		this.baseIndexKey = baseIndexKey;
 
-		if (!getIndexType().equals(Long.class)) {
-			String msg = "Only indexType of Long.class is currently supported.";
-			log.error(msg);
-			throw new IllegalArgumentException(msg);
-		}
+		checkIndexType();
 
 		KeyspaceDefinition kdef = cluster.describeKeyspace(keyspace.getKeyspaceName());
 		ColumnFamilyDefinition cdef = null;		
@@ -117,6 +170,57 @@ public abstract class ShardedIndex<T> {
 			throw new IllegalArgumentException(msg);
 		}
 
+		this.store = new HectorIndexStore<T>(keyspace, columnFamily, getColumnNameSerializer());
+		initialize(snapshotFile);
+	}
+
+	/**
+	 * Constructs a sharded index on top of any IndexStore, for example an
+	 * in-memory store for tests or a local tier. The cluster, keyspace and
+	 * column family are not used and will be null.
+	 * 
+	 * @param store
+	 *            the store holding the index rows.
+	 * @param baseIndexKey
+	 *            the name of the index.
+	 * @param snapshotFile
+	 *            the local snapshot file or null to always read the
+	 *            boundaries from the store.
+	 */
+	protected ShardedIndex(IndexStore<T> store, byte[] baseIndexKey, File snapshotFile) {
+		this(store, baseIndexKey, snapshotFile, false);
+	}
+
+	/**
+	 * @param offHeapShardBoundaries
+	 *            keeps the boundaries outside the heap for index types that
+	 *            support it, from the very first load.
+	 */
+	protected ShardedIndex(IndexStore<T> store, byte[] baseIndexKey, File snapshotFile, boolean offHeapShardBoundaries) {
+		this.offHeapShardBoundaries = offHeapShardBoundaries;
+		this.store = store;
+		this.baseIndexKey = baseIndexKey;
+
+		checkIndexType();
+
+		if (store == null) {
+			String msg = "Sharded index store cannot be null.";
+			log.error(msg);
+			throw new IllegalArgumentException(msg);
+		}
+
+		initialize(snapshotFile);
+	}
+
+	private void checkIndexType() {
+		if (!getIndexType().equals(Long.class)) {
+			String msg = "Only indexType of Long.class is currently supported.";
+			log.error(msg);
+			throw new IllegalArgumentException(msg);
+		}
+	}
+
+	private void initialize(File snapshotFile) {
 		if (baseIndexKey == null || baseIndexKey.length == 0) {
 			String msg = "Sharded index name cannot be null or empty.";
 			log.error(msg);
@@ -125,49 +229,280 @@ public abstract class ShardedIndex<T> {
 
 		emptyIndexKey = ArrayUtils.addAll(baseIndexKey, ArrayUtils.addAll(getEmptyValue(), Delim));
 
-		reloadShardsCache();
+		if (snapshotFile != null)
+			snapshot = new ShardSnapshot(snapshotFile);
+
+		if (loadShardsSnapshot())
+			verifyShardsSnapshotInBackground();
+		else
+			reloadShardsCache();
 	}
 
+	/**
+	 * Publishes the starting boundaries unless the index already has some.
+	 * The boundaries are re-read from Cassandra first so ones published by
+	 * another node since this index was loaded are never overwritten.
+	 */
 	public boolean initializeShardBoundries(List<T> startingBoundries) {
 
-		if (shards.size() == 0) {
-			TreeMap<T, T> map = new TreeMap<T, T>();
+		synchronized (shardsLock) {
+			reloadShardsCache();
+
+			if (shards.size() == 0) {
+				publishShardBoundries(startingBoundries);
+				return true;
+			}
+			else {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Re-reads the boundaries from Cassandra. Reloads and publishes are
+	 * serialized so a reload that started before a publish can't replace the
+	 * published boundaries with older ones.
+	 */
+	public void reloadShardsCache() {
+
+		synchronized (shardsLock) {
+			byte[] raw = getRawDataForIndex(baseIndexKey, getShardColumnName());
 
-			for (T value : startingBoundries) {
-				map.put(value, value);
+			if (raw == null) {
+				shards = createShardBoundaries(new ArrayList<T>());
+				saveShardsSnapshot(new byte[0]);
 			}
+			else {
+				shards = getShardsForBytes(raw);
+				saveShardsSnapshot(raw);
+			}
+		}
+	}
+
+	protected void saveShardsCache(ShardBoundaries<T> boundaries) {
+		List<T> list = new ArrayList<T>(boundaries.size());
 
-			saveShardsCache(map);
-			shards = map;
-			return true;
+		for (T boundary : boundaries) {
+			list.add(boundary);
 		}
-		else {
+
+		byte[] raw = getBytesForDataList(list);
+		overwriteIndex(baseIndexKey, getShardColumnName(), raw);
+		saveShardsSnapshot(raw);
+	}
+
+	/**
+	 * Saves the boundaries to Cassandra and swaps them in as the cached
+	 * boundaries of this index.
+	 */
+	protected void publishShardBoundries(List<T> boundaries) {
+
+		synchronized (shardsLock) {
+			ShardBoundaries<T> current = createShardBoundaries(boundaries);
+			saveShardsCache(current);
+			shards = current;
+		}
+	}
+
+	protected ShardBoundaries<T> getShardsForBytes(byte[] raw) {
+		return createShardBoundaries(getDataListForBytes(raw));
+	}
+
+	public boolean isOffHeapShardBoundaries() {
+		return offHeapShardBoundaries;
+	}
+
+	/**
+	 * Creates the in-memory boundaries of this index. Subclasses may return a
+	 * more compact representation for their index type, off the heap when
+	 * isOffHeapShardBoundaries is set.
+	 */
+	protected ShardBoundaries<T> createShardBoundaries(List<T> boundaries) {
+		return new HeapShardBoundaries<T>(boundaries);
+	}
+
+	/**
+	 * Loads the shard boundaries from the local snapshot.
+	 * 
+	 * @return true if the snapshot existed, was valid and held boundaries. An
+	 *         empty snapshot is not trusted since another node may have
+	 *         published boundaries since it was written.
+	 */
+	protected boolean loadShardsSnapshot() {
+		if (snapshot == null)
+			return false;
+
+		byte[] raw = snapshot.load();
+
+		if (raw == null || raw.length == 0)
 			return false;
+
+		shards = getShardsForBytes(raw);
+		return true;
+	}
+
+	/**
+	 * Rewrites the local snapshot if the raw boundaries differ from what is
+	 * already on disk.
+	 */
+	protected void saveShardsSnapshot(byte[] raw) {
+		if (snapshot == null)
+			return;
+
+		byte[] current = snapshot.load();
+
+		if (current == null || !Arrays.equals(current, raw))
+			snapshot.save(raw);
+	}
+
+	protected void verifyShardsSnapshotInBackground() {
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					reloadShardsCache();
+				}
+				catch (HectorException e) {
+					log.warn("Unable to verify shard snapshot '" + snapshot.getFile() + "' against Cassandra", e);
+				}
+			}
+		}, "eindex-shards-" + new String(baseIndexKey));
+
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public List<T> getShardBoundries() {
+		List<T> list = new ArrayList<T>(shards.size());
+
+		for (T boundary : shards) {
+			list.add(boundary);
 		}
+
+		return list;
 	}
 
-	public void reloadShardsCache() {		
-		ColumnQuery<byte[], T, byte[]> columnQuery = HFactory.createColumnQuery(keyspace, BytesArraySerializer.get(), getColumnNameSerializer(), BytesArraySerializer.get());
-		columnQuery.setColumnFamily(columnFamily).setKey(baseIndexKey).setName(getShardColumnName());
-		QueryResult<HColumn<T, byte[]>> result = columnQuery.execute();
+	/**
+	 * Counts the columns of every shard row and samples the first columns of
+	 * each shard row for multi-value keys, counting their sub-shard rows. The
+	 * result is saved in the statistics column.
+	 * 
+	 * @param sampleLimit
+	 *            the number of columns per shard row to inspect for multi-value
+	 *            keys.
+	 */
+	public ShardStatistics<T> collectStatistics(int sampleLimit) {
+		ShardStatistics<T> stats = countShards(sampleLimit);
+		saveStatistics(stats);
+		return stats;
+	}
 
-		if (result.get() == null)
-			shards = new TreeMap<T, T>();
-		else {
-			List<T> list = getDataListForBytes(result.get().getValue());
-			TreeMap<T, T> map = new TreeMap<T, T>();
-			for (T value : list) {
-				map.put(value, value);
+	/**
+	 * Counts the shard rows like collectStatistics without saving the result.
+	 */
+	protected ShardStatistics<T> countShards(int sampleLimit) {
+		ShardStatistics<T> stats = new ShardStatistics<T>();
+		ShardBoundaries<T> current = shards;
+
+		for (T boundary : current) {
+			byte[] shardKey = getShardKeyForBoundary(boundary);
+			stats.setShardCount(boundary, getColumnCount(shardKey));
+			sampleKeyValueCounts(stats, shardKey, sampleLimit);
+		}
+
+		stats.setOverflowShardCount(getColumnCount(emptyIndexKey));
+		sampleKeyValueCounts(stats, emptyIndexKey, sampleLimit);
+		stats.setCollectedAt(System.currentTimeMillis());
+		return stats;
+	}
+
+	/**
+	 * @return the last statistics saved by collectStatistics or null if they
+	 *         have never been collected.
+	 */
+	public ShardStatistics<T> getStatistics() {
+		byte[] raw = getRawDataForIndex(baseIndexKey, getStatisticsColumnName());
+
+		if (raw == null || raw.length == 0)
+			return null;
+		else
+			return getStatisticsForBytes(raw);
+	}
+
+	protected void saveStatistics(ShardStatistics<T> stats) {
+		overwriteIndex(baseIndexKey, getStatisticsColumnName(), getBytesForStatistics(stats));
+	}
+
+	protected void sampleKeyValueCounts(ShardStatistics<T> stats, byte[] shardKey, int sampleLimit) {
+		if (sampleLimit <= 0)
+			return;
+
+		for (IndexColumn<T> column : getColumnsForShard(shardKey, null, sampleLimit)) {
+			if (Arrays.equals(getEmptyValue(), column.getValue()))
+				stats.setKeyValueCount(column.getName(), getColumnCount(getSubShardKeyForIndex(column.getName())));
+		}
+	}
+
+	protected int getColumnCount(byte[] rowKey) {
+		return store.count(rowKey, null, null);
+	}
+
+	protected byte[] getBytesForStatistics(ShardStatistics<T> stats) {
+
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(4096);
+			DataOutputStream dos = new DataOutputStream(bos);
+			dos.writeLong(stats.getCollectedAt());
+			dos.writeLong(stats.getOverflowShardCount());
+			writeCounts(dos, stats.getShardCounts());
+			writeCounts(dos, stats.getKeyValueCounts());
+			dos.close();
+			return bos.toByteArray();
+		}
+		catch (IOException e) {
+			throw new IllegalArgumentException("Unknown error while serializing ShardStatistics.");
+		}
+	}
+
+	protected ShardStatistics<T> getStatisticsForBytes(byte[] raw) {
+
+		try {
+			DataInputStream dis = new DataInputStream(new ByteArrayInputStream(raw));
+			ShardStatistics<T> stats = new ShardStatistics<T>();
+			stats.setCollectedAt(dis.readLong());
+			stats.setOverflowShardCount(dis.readLong());
+
+			int size = dis.readInt();
+			for (int i = 0; i < size; i++) {
+				stats.setShardCount(readData(dis), dis.readLong());
+			}
+
+			size = dis.readInt();
+			for (int i = 0; i < size; i++) {
+				stats.setKeyValueCount(readData(dis), dis.readLong());
 			}
-			
-			shards = map;
+
+			return stats;
+		}
+		catch (IOException e) {
+			throw new IllegalArgumentException("Invalid raw byte[] for ShardStatistics.");
 		}
 	}
 
-	protected void saveShardsCache(TreeMap<T, T> map) {
-		byte[] raw = getBytesForDataList(new ArrayList<T>(map.values()));		
-		Mutator<byte[]> mutator = HFactory.createMutator(keyspace, BytesArraySerializer.get());
-		mutator.insert(baseIndexKey, columnFamily, HFactory.createColumn(getShardColumnName(), raw, getColumnNameSerializer(), BytesArraySerializer.get()));
+	private void writeCounts(DataOutputStream dos, Map<T, Long> counts) throws IOException {
+		dos.writeInt(counts.size());
+
+		for (Map.Entry<T, Long> entry : counts.entrySet()) {
+			byte[] data = getBytesForData(entry.getKey());
+			dos.writeInt(data.length);
+			dos.write(data);
+			dos.writeLong(entry.getValue());
+		}
+	}
+
+	private T readData(DataInputStream dis) throws IOException {
+		byte[] data = new byte[dis.readInt()];
+		dis.readFully(data);
+		return getDataForBytes(data);
 	}
 
 	public void splitAndBuildShards() {
@@ -175,61 +510,377 @@ public abstract class ShardedIndex<T> {
 	}
 
 	public void addToIndex(T index, T valueToAdd) throws HectorException {
-		byte[] shardKey = getShardKeyForIndex(index);		
-		byte[] raw = getRawDataForIndex(shardKey, keyspace, index);
+		byte[] shardKey = getShardKeyForIndex(index);
+		List<IndexMutation<T>> mutations = new ArrayList<IndexMutation<T>>();
+		IndexChangeEvent<T> event;
+		List<ReentrantLock> locks = lockShards(Collections.singletonList(shardKey));
+
+		try {
+			getMutationsForAdd(index, valueToAdd, getRawDataForIndex(shardKey, index), mutations);
+			store.mutate(mutations);
+			event = createChangeEvent(IndexChangeEvent.Type.ADD, index, valueToAdd);
+		}
+		finally {
+			unlockShards(locks);
+		}
+
+		fireIndexChanged(event);
+	}
+
+	/**
+	 * Appends the mutations adding valueToAdd under index.
+	 * 
+	 * @param raw
+	 *            the current column of the index in its shard row.
+	 * @return the column of the index in its shard row once the mutations are
+	 *         applied.
+	 */
+	protected byte[] getMutationsForAdd(T index, T valueToAdd, byte[] raw, List<IndexMutation<T>> mutations) {
+		byte[] shardKey = getShardKeyForIndex(index);
+		byte[] result;
 
 		if (raw == null || raw.length == 0) {
-			overwriteIndex(shardKey, keyspace, index, getBytesForData(valueToAdd));
+			result = getBytesForData(valueToAdd);
+			mutations.add(IndexMutation.insert(shardKey, index, result));
 		}
 		else if (Arrays.equals(getEmptyValue(), raw)) {
 			byte[] subShardKey = getSubShardKeyForIndex(index);
-			overwriteIndex(subShardKey, keyspace, valueToAdd, getBytesForData(valueToAdd));
+			mutations.add(IndexMutation.insert(subShardKey, valueToAdd, getBytesForData(valueToAdd)));
+			result = raw;
 		}
 		else {
 			byte[] subShardKey = getSubShardKeyForIndex(index);
 			T previousValue = getDataForBytes(raw);
-			overwriteIndex(subShardKey, keyspace, previousValue, getBytesForData(previousValue));
-			overwriteIndex(subShardKey, keyspace, valueToAdd, getBytesForData(valueToAdd));
-			overwriteIndex(shardKey, keyspace, index, getEmptyValue());
+			mutations.add(IndexMutation.insert(subShardKey, previousValue, getBytesForData(previousValue)));
+			mutations.add(IndexMutation.insert(subShardKey, valueToAdd, getBytesForData(valueToAdd)));
+			mutations.add(IndexMutation.insert(shardKey, index, getEmptyValue()));
+			result = getEmptyValue();
 		}
+
+		if (reverseMappingEnabled)
+			mutations.add(IndexMutation.insert(getReverseKeyForValue(valueToAdd), index, getEmptyValue()));
+
+		return result;
 	}
 
 	public void removeAllValuesAtIndex(T index) {
 		byte[] shardKey = getShardKeyForIndex(index);
 		byte[] subShardKey = getSubShardKeyForIndex(index);		
-		removeIndex(subShardKey, keyspace, null);
-		removeIndex(shardKey, keyspace, index);
+		IndexChangeEvent<T> event;
+		List<ReentrantLock> locks = lockShards(Collections.singletonList(shardKey));
+
+		try {
+			List<T> values = reverseMappingEnabled ? getValuesForIndex(index, Integer.MAX_VALUE) : null;
+			removeIndex(subShardKey, null);
+			removeIndex(shardKey, index);
+
+			if (values != null) {
+				for (T value : values) {
+					removeIndex(getReverseKeyForValue(value), index);
+				}
+			}
+
+			event = createChangeEvent(IndexChangeEvent.Type.REMOVE_ALL, index, null);
+		}
+		finally {
+			unlockShards(locks);
+		}
+
+		fireIndexChanged(event);
 	}
 
 	public void removeValueAtIndex(T index, T valueToRemove) {
-		byte[] shardKey = getShardKeyForIndex(index);		
-		byte[] raw = getRawDataForIndex(shardKey, keyspace, index);
+		byte[] shardKey = getShardKeyForIndex(index);
+		IndexChangeEvent<T> event = null;
+		List<ReentrantLock> locks = lockShards(Collections.singletonList(shardKey));
+
+		try {
+			byte[] raw = getRawDataForIndex(shardKey, index);
+			T removed = getRemovedValue(index, valueToRemove, raw);
+			List<IndexMutation<T>> mutations = new ArrayList<IndexMutation<T>>();
+			getMutationsForRemove(index, valueToRemove, raw, mutations);
+
+			if (!mutations.isEmpty()) {
+				store.mutate(mutations);
+
+				if (removed != null)
+					event = createChangeEvent(IndexChangeEvent.Type.REMOVE, index, removed);
+			}
+		}
+		finally {
+			unlockShards(locks);
+		}
+
+		fireIndexChanged(event);
+	}
+
+	/**
+	 * @return the value a remove actually takes away, the single value of the
+	 *         key or valueToRemove if the sub-shard row holds it, null if
+	 *         there is none or nobody listens for changes.
+	 */
+	private T getRemovedValue(T index, T valueToRemove, byte[] raw) {
+		if (changeListeners.isEmpty() || raw == null || raw.length == 0)
+			return null;
+		else if (Arrays.equals(getEmptyValue(), raw))
+			return store.get(getSubShardKeyForIndex(index), valueToRemove) != null ? valueToRemove : null;
+		else
+			return getDataForBytes(raw);
+	}
+
+	/**
+	 * Appends the mutations removing valueToRemove from index.
+	 * 
+	 * @param raw
+	 *            the current column of the index in its shard row.
+	 * @return the column of the index in its shard row once the mutations are
+	 *         applied.
+	 */
+	protected byte[] getMutationsForRemove(T index, T valueToRemove, byte[] raw, List<IndexMutation<T>> mutations) {
 
 		if (raw == null || raw.length == 0) {
-			return;
+			return raw;
 		}
 		else if (Arrays.equals(getEmptyValue(), raw)) {
 			byte[] subShardKey = getSubShardKeyForIndex(index);
-			removeIndex(subShardKey, keyspace, valueToRemove);
+			mutations.add(IndexMutation.delete(subShardKey, valueToRemove));
+
+			if (reverseMappingEnabled)
+				mutations.add(IndexMutation.delete(getReverseKeyForValue(valueToRemove), index));
+
+			return raw;
 		}
 		else {
-			removeIndex(shardKey, keyspace, index);
+			mutations.add(IndexMutation.delete(getShardKeyForIndex(index), index));
+
+			if (reverseMappingEnabled)
+				mutations.add(IndexMutation.delete(getReverseKeyForValue(getDataForBytes(raw)), index));
+
+			return null;
 		}
 	}
 
-	protected void removeIndex(byte[] shardKey, Keyspace ks, T index) {
-		Mutator<byte[]> mutator = HFactory.createMutator(ks, BytesArraySerializer.get());
-		mutator.delete(shardKey, columnFamily, index, getColumnNameSerializer());
+	protected void removeIndex(byte[] shardKey, T index) {
+		if (index == null)
+			store.mutate(Arrays.asList(IndexMutation.<T> deleteRow(shardKey)));
+		else
+			store.mutate(Arrays.asList(IndexMutation.delete(shardKey, index)));
 	}
 
 	public void overwriteIndex(T index, T valueToOverwriteWith) {
 		byte[] shardKey = getShardKeyForIndex(index);		
-		overwriteIndex(shardKey, keyspace, index, getBytesForData(valueToOverwriteWith));
+		IndexChangeEvent<T> event;
+		List<ReentrantLock> locks = lockShards(Collections.singletonList(shardKey));
+
+		try {
+			List<T> previousValues = reverseMappingEnabled ? getValuesForIndex(index, Integer.MAX_VALUE) : null;
+
+			// the sub-shard row goes in the same batch, a single value next to a
+			// sub-shard row holding it reads as an interrupted add to IndexVerifier
+			store.mutate(Arrays.asList(IndexMutation.<T> deleteRow(getSubShardKeyForIndex(index)), IndexMutation.insert(shardKey, index, getBytesForData(valueToOverwriteWith))));
+
+			if (previousValues != null) {
+				for (T value : previousValues) {
+					removeIndex(getReverseKeyForValue(value), index);
+				}
+
+				overwriteIndex(getReverseKeyForValue(valueToOverwriteWith), index, getEmptyValue());
+			}
+
+			event = createChangeEvent(IndexChangeEvent.Type.OVERWRITE, index, valueToOverwriteWith);
+		}
+		finally {
+			unlockShards(locks);
+		}
+
+		fireIndexChanged(event);
 	}
 
-	protected void overwriteIndex(byte[] shardKey, Keyspace ks, T index, byte[] value) {
-		Mutator<byte[]> mutator = HFactory.createMutator(ks, BytesArraySerializer.get());
-		mutator.insert(shardKey, columnFamily, HFactory.createColumn(index, value, getColumnNameSerializer(), BytesArraySerializer.get()));
+	/**
+	 * Returns every index key the value is stored under. Requires the reverse
+	 * mapping to be enabled before the values were written.
+	 */
+	public List<T> getIndexesForValue(T value) {
+		checkReverseMappingEnabled();
+		List<T> list = new ArrayList<T>();
+
+		for (IndexColumn<T> column : getColumnsForShard(getReverseKeyForValue(value), null, Integer.MAX_VALUE)) {
+			list.add(column.getName());
+		}
+
+		return list;
+	}
+
+	/**
+	 * Removes the value from every index key it is stored under. This reads
+	 * the reverse mapping row and all affected shard columns with one
+	 * multiget, then writes the deletes in a single batch.
+	 */
+	public void removeValueEverywhere(T value) {
+		List<T> indexes = getIndexesForValue(value);
+		byte[] reverseKey = getReverseKeyForValue(value);
+		List<IndexMutation<T>> mutations = new ArrayList<IndexMutation<T>>();
+		List<IndexChangeEvent<T>> events = new ArrayList<IndexChangeEvent<T>>();
+		List<byte[]> shardKeys = new ArrayList<byte[]>();
+
+		for (T index : indexes) {
+			byte[] shardKey = getShardKeyForIndex(index);
+
+			if (!containsKey(shardKeys, shardKey))
+				shardKeys.add(shardKey);
+		}
+
+		List<ReentrantLock> locks = lockShards(shardKeys);
+
+		try {
+			List<T> removed = new ArrayList<T>();
+
+			if (!indexes.isEmpty()) {
+				List<List<IndexColumn<T>>> rows = store.multiget(shardKeys, indexes);
+				byte[] rawValue = getBytesForData(value);
+
+				for (int i = 0; i < shardKeys.size(); i++) {
+					byte[] shardKey = shardKeys.get(i);
+
+					for (IndexColumn<T> column : rows.get(i)) {
+						if (!Arrays.equals(shardKey, getShardKeyForIndex(column.getName())))
+							continue;
+
+						if (Arrays.equals(getEmptyValue(), column.getValue())) {
+							mutations.add(IndexMutation.delete(getSubShardKeyForIndex(column.getName()), value));
+							removed.add(column.getName());
+						}
+						else if (Arrays.equals(rawValue, column.getValue())) {
+							mutations.add(IndexMutation.delete(shardKey, column.getName()));
+							removed.add(column.getName());
+						}
+					}
+				}
+			}
+
+			mutations.add(IndexMutation.<T> deleteRow(reverseKey));
+			store.mutate(mutations);
+
+			for (T index : removed) {
+				IndexChangeEvent<T> event = createChangeEvent(IndexChangeEvent.Type.REMOVE, index, value);
+
+				if (event != null)
+					events.add(event);
+			}
+		}
+		finally {
+			unlockShards(locks);
+		}
+
+		for (IndexChangeEvent<T> event : events) {
+			fireIndexChanged(event);
+		}
+	}
+
+	public void addChangeListener(IndexChangeListener<T> listener) {
+		changeListeners.add(listener);
+	}
+
+	public void removeChangeListener(IndexChangeListener<T> listener) {
+		changeListeners.remove(listener);
+	}
+
+	/**
+	 * Locks the shard rows a write goes to. The locks are striped by row key,
+	 * shared by every index and always taken in stripe order, so writes
+	 * spanning several shards or indexes can't deadlock each other.
+	 * 
+	 * @return the locks to hand to unlockShards.
+	 */
+	protected static List<ReentrantLock> lockShards(List<byte[]> shardKeys) {
+		TreeSet<Integer> stripes = new TreeSet<Integer>();
+
+		for (byte[] shardKey : shardKeys) {
+			stripes.add((Arrays.hashCode(shardKey) & Integer.MAX_VALUE) % SHARD_LOCK_STRIPES);
+		}
+
+		List<ReentrantLock> locks = new ArrayList<ReentrantLock>();
+
+		for (Integer stripe : stripes) {
+			shardLocks[stripe].lock();
+			locks.add(shardLocks[stripe]);
+		}
+
+		return locks;
+	}
+
+	protected static void unlockShards(List<ReentrantLock> locks) {
+		for (int i = locks.size() - 1; i >= 0; i--) {
+			locks.get(i).unlock();
+		}
+	}
+
+	/**
+	 * Numbers a change within its shard. Must be called with the shard locked,
+	 * right after the write, so the sequence follows the order the writes
+	 * were applied in.
+	 * 
+	 * @return the event, null if nobody listens for changes.
+	 */
+	protected IndexChangeEvent<T> createChangeEvent(IndexChangeEvent.Type type, T index, T value) {
+		if (changeListeners.isEmpty())
+			return null;
+
+		T boundary = shards.ceiling(index);
+		ByteBuffer shardKey = ByteBuffer.wrap(boundary == null ? emptyIndexKey : getShardKeyForBoundary(boundary));
+		AtomicLong sequence = shardSequences.get(shardKey);
+
+		if (sequence == null) {
+			AtomicLong created = new AtomicLong();
+			sequence = shardSequences.putIfAbsent(shardKey, created);
+
+			if (sequence == null)
+				sequence = created;
+		}
+
+		return new IndexChangeEvent<T>(type, index, value, boundary, sequence.incrementAndGet(), System.currentTimeMillis(), 0);
+	}
+
+	/**
+	 * Delivers a change to the listeners. Called after the shard locks are
+	 * released, so a slow listener never holds up other writers.
+	 */
+	protected void fireIndexChanged(IndexChangeEvent<T> event) {
+		if (event == null)
+			return;
+
+		for (IndexChangeListener<T> listener : changeListeners) {
+			listener.indexChanged(event);
+		}
+	}
+
+	public void setReverseMappingEnabled(boolean reverseMappingEnabled) {
+		this.reverseMappingEnabled = reverseMappingEnabled;
+	}
+
+	public boolean isReverseMappingEnabled() {
+		return reverseMappingEnabled;
+	}
+
+	protected void checkReverseMappingEnabled() {
+		if (!reverseMappingEnabled) {
+			String msg = "The reverse mapping is not enabled for index '" + new String(baseIndexKey) + "'";
+			log.error(msg);
+			throw new IllegalStateException(msg);
+		}
+	}
+
+	private static boolean containsKey(List<byte[]> keys, byte[] key) {
+		for (byte[] k : keys) {
+			if (Arrays.equals(k, key))
+				return true;
+		}
+
+		return false;
+	}
+
+	protected void overwriteIndex(byte[] shardKey, T index, byte[] value) {
+		store.mutate(Arrays.asList(IndexMutation.insert(shardKey, index, value)));
 	}
 
 	public T getValueForIndex(T index) {
@@ -241,45 +892,38 @@ public abstract class ShardedIndex<T> {
 			return null;
 	}
 
+	/**
+	 * Reads up to limit keys starting at index from its shard row, and from the
+	 * next shard row in the direction of the scan when the first one runs
+	 * short. The sub-shard rows of multi-value keys are read in parallel.
+	 */
 	public List<IndexItem<T>> getValueRangesForIndex(T index, boolean reversed, int limit, int subIndexLimit) {
-		byte[] shardKey = getShardKeyForIndex(index);		
-		List<IndexItem<T>> list = getValueRangesForIndex(shardKey, keyspace, index, reversed, limit, subIndexLimit);
+		List<IndexColumn<T>> columns = new ArrayList<IndexColumn<T>>(store.slice(getShardKeyForIndex(index), index, null, reversed, limit));
 
-		if (list.size() < limit) {
+		if (columns.size() < limit) {
 			byte[] nextShardKey = getNextNearestShardKeyForIndex(index, reversed);
 
-			if (nextShardKey != null) {
-				List<IndexItem<T>> nextList = getValueRangesForIndex(nextShardKey, keyspace, index, reversed, limit, subIndexLimit);
-
-				int countToAdd = limit - list.size();
-
-				if (countToAdd > nextList.size())
-					countToAdd = nextList.size();
-
-				for (int i = 0; i < countToAdd; i++) {
-					list.add(nextList.get(i));
-				}
-			}
+			if (nextShardKey != null)
+				columns.addAll(store.slice(nextShardKey, index, null, reversed, limit - columns.size()));
 		}
 
-		return list;
+		return getItemsForColumns(columns, subIndexLimit);
 	}
 
-	protected List<IndexItem<T>> getValueRangesForIndex(byte[] shardKey, Keyspace ks, T index, boolean reversed, int limit, int subIndexLimit) {
-
-		SliceQuery<byte[], T, byte[]> query = HFactory.createSliceQuery(ks, BytesArraySerializer.get(), getColumnNameSerializer(), BytesArraySerializer.get());
-		query.setColumnFamily(columnFamily);
-		query.setKey(shardKey);
-		query.setRange(index, null, reversed, limit);
-		QueryResult<ColumnSlice<T, byte[]>> result = query.execute();
-		ColumnSlice<T, byte[]> cs = result.get();
+	protected List<IndexItem<T>> getValueRangesForIndex(byte[] shardKey, T index, boolean reversed, int limit, int subIndexLimit) {
+		return getItemsForColumns(store.slice(shardKey, index, null, reversed, limit), subIndexLimit);
+	}
 
+	/**
+	 * Turns shard columns into items, reading the sub-shard rows of the
+	 * multi-value keys in parallel.
+	 */
+	protected List<IndexItem<T>> getItemsForColumns(List<IndexColumn<T>> columns, final int subIndexLimit) {
 		List<IndexItem<T>> list = new ArrayList<IndexItem<T>>();
+		List<IndexItem<T>> multiValued = new ArrayList<IndexItem<T>>();
+		List<Callable<List<T>>> tasks = new ArrayList<Callable<List<T>>>();
 
-		if (cs == null)
-			return list;
-
-		for (HColumn<T, byte[]> column : cs.getColumns()) {
+		for (IndexColumn<T> column : columns) {
 			IndexItem<T> item = new IndexItem<T>();
 			item.setIndex(column.getName());
 			list.add(item);
@@ -288,8 +932,14 @@ public abstract class ShardedIndex<T> {
 				item.setValues(new ArrayList<T>());
 			}
 			else if (Arrays.equals(getEmptyValue(), column.getValue())) {
-				byte[] subShardKey = getSubShardKeyForIndex(item.getIndex());
-				item.setValues(getValuesForIndex(subShardKey, ks, subIndexLimit));
+				final byte[] subShardKey = getSubShardKeyForIndex(item.getIndex());
+				multiValued.add(item);
+
+				tasks.add(new Callable<List<T>>() {
+					public List<T> call() {
+						return getValuesForIndex(subShardKey, subIndexLimit);
+					}
+				});
 			}
 			else {
 				item.setValues(new ArrayList<T>());
@@ -297,19 +947,86 @@ public abstract class ShardedIndex<T> {
 			}
 		}
 
+		if (!tasks.isEmpty()) {
+			List<List<T>> values = fanOut.invokeAll(tasks);
+
+			for (int i = 0; i < multiValued.size(); i++) {
+				multiValued.get(i).setValues(values.get(i));
+			}
+		}
+
 		return list;
 	}
 
+	/**
+	 * Reads the values of several keys with one multiget of their shard
+	 * columns, reading the sub-shard rows of multi-value keys in parallel.
+	 * 
+	 * @return the values of every key in key order, keys without values map
+	 *         to an empty list.
+	 */
+	public Map<T, List<T>> getValuesForIndexes(List<T> indexes, final int limit) {
+		List<byte[]> shardKeys = new ArrayList<byte[]>();
+
+		for (T index : indexes) {
+			byte[] shardKey = getShardKeyForIndex(index);
+
+			if (!containsKey(shardKeys, shardKey))
+				shardKeys.add(shardKey);
+		}
+
+		Map<T, List<T>> map = new LinkedHashMap<T, List<T>>();
+
+		for (T index : indexes) {
+			map.put(index, new ArrayList<T>());
+		}
+
+		List<List<IndexColumn<T>>> rows = store.multiget(shardKeys, indexes);
+		List<T> multiValued = new ArrayList<T>();
+		List<Callable<List<T>>> tasks = new ArrayList<Callable<List<T>>>();
+
+		for (int i = 0; i < shardKeys.size(); i++) {
+			for (IndexColumn<T> column : rows.get(i)) {
+				if (!Arrays.equals(shardKeys.get(i), getShardKeyForIndex(column.getName())) || column.getValue() == null || column.getValue().length == 0)
+					continue;
+
+				if (Arrays.equals(getEmptyValue(), column.getValue())) {
+					final byte[] subShardKey = getSubShardKeyForIndex(column.getName());
+					multiValued.add(column.getName());
+
+					tasks.add(new Callable<List<T>>() {
+						public List<T> call() {
+							return getValuesForIndex(subShardKey, limit);
+						}
+					});
+				}
+				else {
+					map.get(column.getName()).add(getDataForBytes(column.getValue()));
+				}
+			}
+		}
+
+		if (!tasks.isEmpty()) {
+			List<List<T>> values = fanOut.invokeAll(tasks);
+
+			for (int i = 0; i < multiValued.size(); i++) {
+				map.put(multiValued.get(i), values.get(i));
+			}
+		}
+
+		return map;
+	}
+
 	public List<T> getValuesForIndex(T index, int limit) {
 		byte[] shardKey = getShardKeyForIndex(index);		
-		byte[] raw = getRawDataForIndex(shardKey, keyspace, index);
+		byte[] raw = getRawDataForIndex(shardKey, index);
 
 		if (raw == null || raw.length == 0) {
 			return new ArrayList<T>();
 		}
 		else if (Arrays.equals(getEmptyValue(), raw)) {
 			byte[] subShardKey = getSubShardKeyForIndex(index);
-			return getValuesForIndex(subShardKey, keyspace, limit);
+			return getValuesForIndex(subShardKey, limit);
 		}
 		else {
 			ArrayList<T> list = new ArrayList<T>();
@@ -318,34 +1035,62 @@ public abstract class ShardedIndex<T> {
 		}
 	}
 
-	protected List<T> getValuesForIndex(byte[] shardKey, Keyspace ks, int limit) {
+	protected List<T> getValuesForIndex(byte[] shardKey, int limit) {
 		ArrayList<T> list = new ArrayList<T>();
-		SliceQuery<byte[], T, byte[]> query = HFactory.createSliceQuery(ks, BytesArraySerializer.get(), getColumnNameSerializer(), BytesArraySerializer.get());
-		query.setColumnFamily(columnFamily);
-		query.setKey(shardKey);
-		query.setRange(null, null, false, limit);
-		QueryResult<ColumnSlice<T, byte[]>> result = query.execute();
-		ColumnSlice<T, byte[]> cs = result.get();
-
-		if (cs == null)
-			return list;
 
-		for (HColumn<T, byte[]> column : cs.getColumns()) {
+		for (IndexColumn<T> column : store.slice(shardKey, null, null, false, limit)) {
 			list.add(getDataForBytes(column.getValue()));
 		}
 
 		return list;
 	}
 
-	protected byte[] getRawDataForIndex(byte[] shardKey, Keyspace ks, T index) {
-		ColumnQuery<byte[], T, byte[]> columnQuery = HFactory.createColumnQuery(ks, BytesArraySerializer.get(), getColumnNameSerializer(), BytesArraySerializer.get());
-		columnQuery.setColumnFamily(columnFamily).setKey(shardKey).setName(index);
-		QueryResult<HColumn<T, byte[]>> result = columnQuery.execute();
+	protected List<IndexColumn<T>> getColumnsForShard(byte[] shardKey, T start, int limit) {
+		return store.slice(shardKey, start, null, false, limit);
+	}
 
-		if (result.get() == null)
-			return null;
-		else
-			return result.get().getValue();
+	/**
+	 * Receives the columns of a row a page at a time.
+	 */
+	public interface ColumnPageHandler<T> {
+
+		void handle(List<IndexColumn<T>> columns);
+	}
+
+	/**
+	 * Reads every column of a row a page at a time. Each page after the first
+	 * starts at the last column of the previous one, which is skipped, so the
+	 * page size must be at least 2.
+	 */
+	protected void forEachPage(byte[] rowKey, int pageSize, ColumnPageHandler<T> handler) {
+		checkPageSize(pageSize);
+		T start = null;
+
+		while (true) {
+			List<IndexColumn<T>> columns = getColumnsForShard(rowKey, start, pageSize);
+
+			if (start != null && !columns.isEmpty() && columns.get(0).getName().equals(start))
+				handler.handle(columns.subList(1, columns.size()));
+			else
+				handler.handle(columns);
+
+			if (columns.size() < pageSize)
+				break;
+
+			start = columns.get(columns.size() - 1).getName();
+		}
+	}
+
+	protected static void checkPageSize(int pageSize) {
+		if (pageSize < 2) {
+			String msg = "The page size must be at least 2.";
+			log.error(msg);
+			throw new IllegalArgumentException(msg);
+		}
+	}
+
+	protected byte[] getRawDataForIndex(byte[] shardKey, T index) {
+		return store.get(shardKey, index);
 	}
 
 	protected byte[] getShardKeyForIndex(T index) {
@@ -354,13 +1099,56 @@ public abstract class ShardedIndex<T> {
 			return emptyIndexKey;
 		}
 		else {
-			T shard = shards.ceilingKey(index);
+			T shard = shards.ceiling(index);
 
 			if (shard == null)
 				return emptyIndexKey;
 			else
-				return ArrayUtils.addAll(baseIndexKey, ArrayUtils.addAll(Delim, getBytesForData(shard)));
+				return getShardKeyForBoundary(shard);
+		}
+	}
+
+	/**
+	 * @return the row keys of every shard in index key order, ending with the
+	 *         overflow shard past the last boundary.
+	 */
+	protected List<byte[]> getShardKeys() {
+		List<byte[]> list = new ArrayList<byte[]>();
+
+		for (T boundary : shards) {
+			list.add(getShardKeyForBoundary(boundary));
+		}
+
+		list.add(emptyIndexKey);
+		return list;
+	}
+
+	/**
+	 * @return the boundaries of every shard holding keys between start and end
+	 *         inclusive in index key order, null is the overflow shard past the
+	 *         last boundary. A null start or end leaves that side unbounded.
+	 */
+	protected List<T> getBoundariesForRange(T start, T end) {
+		ShardBoundaries<T> current = shards;
+		T last = end == null ? null : current.ceiling(end);
+		List<T> list = new ArrayList<T>();
+		T boundary = start == null ? current.first() : current.ceiling(start);
+
+		while (boundary != null) {
+			list.add(boundary);
+
+			if (boundary.equals(last))
+				return list;
+
+			boundary = current.higher(boundary);
 		}
+
+		list.add(null);
+		return list;
+	}
+
+	protected byte[] getShardKeyForBoundary(T boundary) {
+		return ArrayUtils.addAll(baseIndexKey, ArrayUtils.addAll(Delim, getBytesForData(boundary)));
 	}
 
 	protected byte[] getNextNearestShardKeyForIndex(T index, boolean reversed) {
@@ -369,13 +1157,14 @@ public abstract class ShardedIndex<T> {
 			return null;
 		}
 		else {
-			T shard = shards.ceilingKey(index);
+			ShardBoundaries<T> current = shards;
+			T shard = current.ceiling(index);
 
 			if (reversed) {
 				if (shard == null)
-					shard = shards.lastKey();
+					shard = current.last();
 				else
-					shard = shards.lowerKey(shard);
+					shard = current.lower(shard);
 
 				if (shard == null)
 					return null;
@@ -384,13 +1173,13 @@ public abstract class ShardedIndex<T> {
 				if (shard == null)
 					return null;
 				else
-					shard = shards.higherKey(shard);
+					shard = current.higher(shard);
 
 				if (shard == null)
 					return emptyIndexKey;
 			}
 
-			return ArrayUtils.addAll(baseIndexKey, ArrayUtils.addAll(Delim, getBytesForData(shard)));
+			return getShardKeyForBoundary(shard);
 		}
 	}
 
@@ -398,6 +1187,10 @@ public abstract class ShardedIndex<T> {
 		return ArrayUtils.addAll(baseIndexKey, ArrayUtils.addAll(SubDelim, getBytesForData(index)));
 	}
 
+	protected byte[] getReverseKeyForValue(T value) {
+		return ArrayUtils.addAll(baseIndexKey, ArrayUtils.addAll(ReverseDelim, getBytesForData(value)));
+	}
+
 	public Cluster getCluster() {
 		return cluster;
 	}
@@ -410,6 +1203,30 @@ public abstract class ShardedIndex<T> {
 		return columnFamily;
 	}
 
+	public IndexStore<T> getStore() {
+		return store;
+	}
+
+	/**
+	 * Replaces the store, for example to wrap the current store in a
+	 * WriteBehindIndexStore.
+	 */
+	public void setStore(IndexStore<T> store) {
+		this.store = store;
+	}
+
+	public FanOutExecutor getFanOutExecutor() {
+		return fanOut;
+	}
+
+	/**
+	 * Replaces the executor reading rows in parallel, for example to change
+	 * the concurrency limit or set a deadline.
+	 */
+	public void setFanOutExecutor(FanOutExecutor fanOut) {
+		this.fanOut = fanOut;
+	}
+
 	public byte[] getBaseIndexKey() {
 		return baseIndexKey;
 	}
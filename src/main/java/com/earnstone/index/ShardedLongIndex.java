@@ -19,6 +19,7 @@ package com.earnstone.index;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -29,6 +30,8 @@ import me.prettyprint.hector.api.Keyspace;
 import me.prettyprint.hector.api.Serializer;
 import me.prettyprint.hector.api.ddl.ComparatorType;
 
+import com.earnstone.index.store.IndexStore;
+
 public class ShardedLongIndex extends ShardedIndex<Long> {
 
 	private static final byte[] emptyValue = { 0 };
@@ -36,7 +39,49 @@ public class ShardedLongIndex extends ShardedIndex<Long> {
 	public ShardedLongIndex(Cluster cluster, Keyspace keyspace, String columnFamily, String name) {
 		super(cluster, keyspace, columnFamily, name.getBytes());
 	}
-	
+
+	public ShardedLongIndex(Cluster cluster, Keyspace keyspace, String columnFamily, String name, File snapshotFile) {
+		super(cluster, keyspace, columnFamily, name.getBytes(), snapshotFile);
+	}
+
+	/**
+	 * @param offHeapShardBoundaries
+	 *            keeps the shard boundaries in a direct buffer instead of a
+	 *            TreeSet, so indexes with millions of boundaries don't add to
+	 *            the heap.
+	 */
+	public ShardedLongIndex(Cluster cluster, Keyspace keyspace, String columnFamily, String name, File snapshotFile, boolean offHeapShardBoundaries) {
+		super(cluster, keyspace, columnFamily, name.getBytes(), snapshotFile, offHeapShardBoundaries);
+	}
+
+	public ShardedLongIndex(IndexStore<Long> store, String name) {
+		super(store, name.getBytes(), null);
+	}
+
+	public ShardedLongIndex(IndexStore<Long> store, String name, File snapshotFile) {
+		super(store, name.getBytes(), snapshotFile);
+	}
+
+	public ShardedLongIndex(IndexStore<Long> store, String name, File snapshotFile, boolean offHeapShardBoundaries) {
+		super(store, name.getBytes(), snapshotFile, offHeapShardBoundaries);
+	}
+
+	@Override
+	protected ShardBoundaries<Long> createShardBoundaries(List<Long> boundaries) {
+		if (isOffHeapShardBoundaries())
+			return new OffHeapLongShardBoundaries(boundaries);
+		else
+			return super.createShardBoundaries(boundaries);
+	}
+
+	@Override
+	protected ShardBoundaries<Long> getShardsForBytes(byte[] raw) {
+		if (isOffHeapShardBoundaries())
+			return new OffHeapLongShardBoundaries(raw);
+		else
+			return super.getShardsForBytes(raw);
+	}
+
 	@Override
 	public Class<Long> getIndexType() {
 		return Long.class;
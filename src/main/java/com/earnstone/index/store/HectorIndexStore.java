@@ -0,0 +1,187 @@
+/*
+ * Eindex: Earnstone Sharded Column Index for Cassandra
+ *
+ * Copyright 2011 Corey Hulen, Earnstone Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.earnstone.index.store;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import me.prettyprint.cassandra.serializers.BytesArraySerializer;
+import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.Serializer;
+import me.prettyprint.hector.api.beans.ColumnSlice;
+import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.beans.Row;
+import me.prettyprint.hector.api.factory.HFactory;
+import me.prettyprint.hector.api.mutation.Mutator;
+import me.prettyprint.hector.api.query.ColumnQuery;
+import me.prettyprint.hector.api.query.CountQuery;
+import me.prettyprint.hector.api.query.MultigetSliceQuery;
+import me.prettyprint.hector.api.query.QueryResult;
+import me.prettyprint.hector.api.query.SliceQuery;
+
+/**
+ * Stores the index in a Cassandra column family through Hector.
+ */
+public class HectorIndexStore<N> implements IndexStore<N> {
+
+	private Keyspace keyspace;
+	private String columnFamily;
+	private Serializer<N> nameSerializer;
+
+	public HectorIndexStore(Keyspace keyspace, String columnFamily, Serializer<N> nameSerializer) {
+		this.keyspace = keyspace;
+		this.columnFamily = columnFamily;
+		this.nameSerializer = nameSerializer;
+	}
+
+	public byte[] get(byte[] rowKey, N name) {
+		ColumnQuery<byte[], N, byte[]> columnQuery = HFactory.createColumnQuery(keyspace, BytesArraySerializer.get(), nameSerializer, BytesArraySerializer.get());
+		columnQuery.setColumnFamily(columnFamily).setKey(rowKey).setName(name);
+		QueryResult<HColumn<N, byte[]>> result = columnQuery.execute();
+
+		if (result.get() == null)
+			return null;
+		else
+			return result.get().getValue();
+	}
+
+	public List<IndexColumn<N>> slice(byte[] rowKey, N start, N finish, boolean reversed, int limit) {
+		SliceQuery<byte[], N, byte[]> query = HFactory.createSliceQuery(keyspace, BytesArraySerializer.get(), nameSerializer, BytesArraySerializer.get());
+		query.setColumnFamily(columnFamily);
+		query.setKey(rowKey);
+		query.setRange(start, finish, reversed, limit);
+		ColumnSlice<N, byte[]> cs = query.execute().get();
+
+		if (cs == null)
+			return new ArrayList<IndexColumn<N>>();
+		else
+			return getColumns(cs);
+	}
+
+	public List<List<IndexColumn<N>>> multiget(List<byte[]> rowKeys, List<N> names) {
+		List<List<IndexColumn<N>>> list = new ArrayList<List<IndexColumn<N>>>(rowKeys.size());
+
+		for (int i = 0; i < rowKeys.size(); i++) {
+			list.add(new ArrayList<IndexColumn<N>>());
+		}
+
+		if (rowKeys.isEmpty() || names.isEmpty())
+			return list;
+
+		MultigetSliceQuery<byte[], N, byte[]> query = HFactory.createMultigetSliceQuery(keyspace, BytesArraySerializer.get(), nameSerializer, BytesArraySerializer.get());
+		query.setColumnFamily(columnFamily);
+		query.setKeys(rowKeys);
+		query.setColumnNames(toArray(names));
+
+		for (Row<byte[], N, byte[]> row : query.execute().get()) {
+			for (int i = 0; i < rowKeys.size(); i++) {
+				if (Arrays.equals(rowKeys.get(i), row.getKey()))
+					list.set(i, getColumns(row.getColumnSlice()));
+			}
+		}
+
+		return list;
+	}
+
+	public int count(byte[] rowKey, N start, N finish) {
+		CountQuery<byte[], N> query = HFactory.createCountQuery(keyspace, BytesArraySerializer.get(), nameSerializer);
+		query.setColumnFamily(columnFamily);
+		query.setKey(rowKey);
+		query.setRange(start, finish, Integer.MAX_VALUE);
+		Integer count = query.execute().get();
+		return count == null ? 0 : count;
+	}
+
+	/**
+	 * Sends the mutations as a single batch_mutate with one clock, deletions
+	 * one tick before it so a column deleted and then inserted in the same
+	 * batch stays inserted. Clocks are never moved into the future, so a
+	 * deletion after an insertion of the same column has to go in a later
+	 * batch and is rejected here.
+	 */
+	public void mutate(List<IndexMutation<N>> mutations) {
+		if (mutations.isEmpty())
+			return;
+
+		Mutator<byte[]> mutator = HFactory.createMutator(keyspace, BytesArraySerializer.get());
+		long clock = keyspace.createClock();
+		Map<ByteBuffer, Set<ByteBuffer>> inserted = new HashMap<ByteBuffer, Set<ByteBuffer>>();
+
+		for (IndexMutation<N> mutation : mutations) {
+			ByteBuffer row = ByteBuffer.wrap(mutation.getRowKey());
+			Set<ByteBuffer> names = inserted.get(row);
+
+			if (mutation.isRowDeletion()) {
+				if (names != null)
+					throw new IllegalArgumentException("A row cannot be deleted after an insert in the same batch.");
+
+				mutator.addDeletion(mutation.getRowKey(), columnFamily, clock - 1);
+			}
+			else if (mutation.isDeletion()) {
+				if (names != null && names.contains(nameSerializer.toByteBuffer(mutation.getName())))
+					throw new IllegalArgumentException("A column cannot be deleted after an insert in the same batch.");
+
+				mutator.addDeletion(mutation.getRowKey(), columnFamily, mutation.getName(), nameSerializer, clock - 1);
+			}
+			else {
+				if (names == null) {
+					names = new HashSet<ByteBuffer>();
+					inserted.put(row, names);
+				}
+
+				names.add(nameSerializer.toByteBuffer(mutation.getName()));
+				mutator.addInsertion(mutation.getRowKey(), columnFamily, HFactory.createColumn(mutation.getName(), mutation.getValue(), clock, nameSerializer, BytesArraySerializer.get()));
+			}
+		}
+
+		mutator.execute();
+	}
+
+	public Keyspace getKeyspace() {
+		return keyspace;
+	}
+
+	public String getColumnFamily() {
+		return columnFamily;
+	}
+
+	public Serializer<N> getNameSerializer() {
+		return nameSerializer;
+	}
+
+	private List<IndexColumn<N>> getColumns(ColumnSlice<N, byte[]> cs) {
+		List<IndexColumn<N>> list = new ArrayList<IndexColumn<N>>(cs.getColumns().size());
+
+		for (HColumn<N, byte[]> column : cs.getColumns()) {
+			list.add(new IndexColumn<N>(column.getName(), column.getValue()));
+		}
+
+		return list;
+	}
+
+	@SuppressWarnings("unchecked")
+	private N[] toArray(List<N> names) {
+		return (N[]) names.toArray();
+	}
+}
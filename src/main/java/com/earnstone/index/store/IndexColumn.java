@@ -0,0 +1,37 @@
+/*
+ * Eindex: Earnstone Sharded Column Index for Cassandra
+ *
+ * Copyright 2011 Corey Hulen, Earnstone Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.earnstone.index.store;
+
+public class IndexColumn<N> {
+
+	private N name;
+	private byte[] value;
+
+	public IndexColumn(N name, byte[] value) {
+		this.name = name;
+		this.value = value;
+	}
+
+	public N getName() {
+		return name;
+	}
+
+	public byte[] getValue() {
+		return value;
+	}
+}
@@ -0,0 +1,78 @@
+/*
+ * Eindex: Earnstone Sharded Column Index for Cassandra
+ *
+ * Copyright 2011 Corey Hulen, Earnstone Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.earnstone.index.store;
+
+/**
+ * A single column insert, column delete or row delete.
+ */
+public class IndexMutation<N> {
+
+	private byte[] rowKey;
+	private N name;
+	private byte[] value;
+
+	private IndexMutation(byte[] rowKey, N name, byte[] value) {
+		this.rowKey = rowKey;
+		this.name = name;
+		this.value = value;
+	}
+
+	public static <N> IndexMutation<N> insert(byte[] rowKey, N name, byte[] value) {
+		if (name == null || value == null)
+			throw new IllegalArgumentException("An insert requires a column name and value.");
+
+		return new IndexMutation<N>(rowKey, name, value);
+	}
+
+	public static <N> IndexMutation<N> delete(byte[] rowKey, N name) {
+		if (name == null)
+			throw new IllegalArgumentException("A column delete requires a column name.");
+
+		return new IndexMutation<N>(rowKey, name, null);
+	}
+
+	public static <N> IndexMutation<N> deleteRow(byte[] rowKey) {
+		return new IndexMutation<N>(rowKey, null, null);
+	}
+
+	public byte[] getRowKey() {
+		return rowKey;
+	}
+
+	/**
+	 * @return the column name or null for a row delete.
+	 */
+	public N getName() {
+		return name;
+	}
+
+	/**
+	 * @return the column value or null for a delete.
+	 */
+	public byte[] getValue() {
+		return value;
+	}
+
+	public boolean isDeletion() {
+		return value == null;
+	}
+
+	public boolean isRowDeletion() {
+		return name == null;
+	}
+}
@@ -0,0 +1,60 @@
+/*
+ * Eindex: Earnstone Sharded Column Index for Cassandra
+ *
+ * Copyright 2011 Corey Hulen, Earnstone Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.earnstone.index.store;
+
+import java.util.List;
+
+/**
+ * The storage used by a sharded index: rows identified by a byte[] key, each
+ * holding columns sorted by name. Cassandra through Hector is the default,
+ * in-process stores can be used for tests, benchmarks and local tiers.
+ */
+public interface IndexStore<N> {
+
+	/**
+	 * @return the value of the column or null if it doesn't exist.
+	 */
+	byte[] get(byte[] rowKey, N name);
+
+	/**
+	 * Returns the columns of a row between start and finish (both inclusive,
+	 * null meaning unbounded). When reversed the slice starts at start and
+	 * walks toward smaller names.
+	 */
+	List<IndexColumn<N>> slice(byte[] rowKey, N start, N finish, boolean reversed, int limit);
+
+	/**
+	 * Reads the named columns of several rows at once.
+	 * 
+	 * @return one list of columns per row key in the same order as rowKeys.
+	 */
+	List<List<IndexColumn<N>>> multiget(List<byte[]> rowKeys, List<N> names);
+
+	/**
+	 * @return the number of columns of a row between start and finish (both
+	 *         inclusive, null meaning unbounded).
+	 */
+	int count(byte[] rowKey, N start, N finish);
+
+	/**
+	 * Applies the mutations as one batch. Deletions take effect before
+	 * insertions, a column or row may not be deleted after it was inserted in
+	 * the same batch.
+	 */
+	void mutate(List<IndexMutation<N>> mutations);
+}
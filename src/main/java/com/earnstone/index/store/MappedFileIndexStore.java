@@ -0,0 +1,294 @@
+/*
+ * Eindex: Earnstone Sharded Column Index for Cassandra
+ *
+ * Copyright 2011 Corey Hulen, Earnstone Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.earnstone.index.store;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import me.prettyprint.hector.api.Serializer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A MemoryIndexStore that persists every batch of mutations to a memory
+ * mapped log file. The log is replayed into memory when the store is opened
+ * and can be compacted down to the live columns with compact().
+ *
+ * The file starts with a magic number and format version followed by the
+ * batches. Each batch is an int length followed by its mutations, a zero
+ * length marks the end of the log.
+ */
+public class MappedFileIndexStore<N> extends MemoryIndexStore<N> implements Closeable {
+
+	public static final int MAGIC = 0x4549444C;
+	public static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 8;
+	private static final int INITIAL_CAPACITY = 1024 * 1024;
+	private static final byte INSERT = 1;
+	private static final byte DELETE = 2;
+	private static final byte DELETE_ROW = 3;
+	private static final Logger log = LoggerFactory.getLogger(MappedFileIndexStore.class);
+
+	private File file;
+	// the file currently mapped, the tmp file while compacting
+	private File mapped;
+	private Serializer<N> nameSerializer;
+	private RandomAccessFile raf;
+	private MappedByteBuffer buffer;
+
+	public MappedFileIndexStore(File file, Serializer<N> nameSerializer) throws IOException {
+		this(file, nameSerializer, null);
+	}
+
+	public MappedFileIndexStore(File file, Serializer<N> nameSerializer, Comparator<? super N> comparator) throws IOException {
+		super(comparator);
+		this.file = file;
+		this.nameSerializer = nameSerializer;
+		open();
+	}
+
+	public synchronized void mutate(List<IndexMutation<N>> mutations) {
+		if (mutations.isEmpty())
+			return;
+
+		if (raf == null)
+			throw new IllegalStateException("Index store log '" + file + "' is closed.");
+
+		append(mutations);
+		super.mutate(mutations);
+	}
+
+	/**
+	 * Rewrites the log so it only holds the live columns.
+	 */
+	public synchronized void compact() throws IOException {
+		List<IndexMutation<N>> live = new ArrayList<IndexMutation<N>>();
+
+		for (Map.Entry<ByteBuffer, ConcurrentSkipListMap<N, byte[]>> row : getRows().entrySet()) {
+			byte[] rowKey = new byte[row.getKey().remaining()];
+			row.getKey().duplicate().get(rowKey);
+
+			for (Map.Entry<N, byte[]> column : row.getValue().entrySet()) {
+				live.add(IndexMutation.insert(rowKey, column.getKey(), column.getValue()));
+			}
+		}
+
+		close();
+
+		File tmp = new File(file.getPath() + ".tmp");
+		tmp.delete();
+
+		try {
+			map(tmp, INITIAL_CAPACITY);
+			buffer.putInt(MAGIC);
+			buffer.putInt(VERSION);
+			append(live);
+			close();
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException e) {
+			abortCompaction(tmp);
+			throw e;
+		}
+		catch (RuntimeException e) {
+			abortCompaction(tmp);
+			throw e;
+		}
+
+		open();
+	}
+
+	/**
+	 * Drops a half written compacted log and goes back to the original one,
+	 * which is only replaced once the compacted log is on disk.
+	 */
+	private void abortCompaction(File tmp) throws IOException {
+		if (raf != null) {
+			buffer = null;
+			raf.close();
+			raf = null;
+		}
+
+		tmp.delete();
+		open();
+	}
+
+	/**
+	 * Forces the mapped log to disk and closes the file.
+	 */
+	public synchronized void close() throws IOException {
+		if (raf == null)
+			return;
+
+		buffer.force();
+		buffer = null;
+		raf.getChannel().force(true);
+		raf.close();
+		raf = null;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	private void open() throws IOException {
+		boolean exists = file.isFile() && file.length() >= HEADER_SIZE;
+		map(file, exists ? file.length() : INITIAL_CAPACITY);
+
+		if (!exists) {
+			buffer.putInt(MAGIC);
+			buffer.putInt(VERSION);
+			return;
+		}
+
+		if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+			close();
+			String msg = "Unknown index store format in '" + file + "'";
+			log.error(msg);
+			throw new IOException(msg);
+		}
+
+		replay();
+	}
+
+	private void replay() {
+		while (buffer.remaining() >= 4) {
+			int start = buffer.position();
+			int length = buffer.getInt();
+
+			if (length <= 0 || length > buffer.remaining()) {
+				if (length != 0)
+					log.warn("Ignoring truncated batch at offset " + start + " of '" + file + "'");
+
+				buffer.position(start);
+				return;
+			}
+
+			List<IndexMutation<N>> mutations = new ArrayList<IndexMutation<N>>();
+			int end = buffer.position() + length;
+
+			while (buffer.position() < end) {
+				byte type = buffer.get();
+				byte[] rowKey = readBytes();
+
+				if (type == DELETE_ROW)
+					mutations.add(IndexMutation.<N> deleteRow(rowKey));
+				else if (type == DELETE)
+					mutations.add(IndexMutation.delete(rowKey, nameSerializer.fromBytes(readBytes())));
+				else
+					mutations.add(IndexMutation.insert(rowKey, nameSerializer.fromBytes(readBytes()), readBytes()));
+			}
+
+			super.mutate(mutations);
+		}
+	}
+
+	private void append(List<IndexMutation<N>> mutations) {
+		List<byte[]> names = new ArrayList<byte[]>(mutations.size());
+		int length = 0;
+
+		for (IndexMutation<N> mutation : mutations) {
+			byte[] name = mutation.isRowDeletion() ? null : nameSerializer.toBytes(mutation.getName());
+			names.add(name);
+			length += 1 + 4 + mutation.getRowKey().length;
+
+			if (name != null)
+				length += 4 + name.length;
+
+			if (!mutation.isDeletion())
+				length += 4 + mutation.getValue().length;
+		}
+
+		ensureCapacity(4 + length + 4);
+
+		int start = buffer.position();
+		buffer.position(start + 4);
+
+		for (int i = 0; i < mutations.size(); i++) {
+			IndexMutation<N> mutation = mutations.get(i);
+			buffer.put(mutation.isRowDeletion() ? DELETE_ROW : (mutation.isDeletion() ? DELETE : INSERT));
+			writeBytes(mutation.getRowKey());
+
+			if (names.get(i) != null)
+				writeBytes(names.get(i));
+
+			if (!mutation.isDeletion())
+				writeBytes(mutation.getValue());
+		}
+
+		// the length goes in last so a torn write is never replayed
+		buffer.putInt(start, length);
+	}
+
+	private void ensureCapacity(int needed) {
+		if (buffer.remaining() >= needed)
+			return;
+
+		long capacity = buffer.capacity();
+		while (capacity - buffer.position() < needed) {
+			capacity *= 2;
+		}
+
+		if (capacity > Integer.MAX_VALUE)
+			throw new IllegalStateException("Index store log '" + mapped + "' is full, call compact().");
+
+		try {
+			int position = buffer.position();
+			buffer.force();
+			map(mapped, capacity);
+			buffer.position(position);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Unable to grow index store log '" + mapped + "'", e);
+		}
+	}
+
+	private void map(File target, long capacity) throws IOException {
+		if (raf != null)
+			raf.close();
+
+		raf = new RandomAccessFile(target, "rw");
+		mapped = target;
+		buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+	}
+
+	private void writeBytes(byte[] data) {
+		buffer.putInt(data.length);
+		buffer.put(data);
+	}
+
+	private byte[] readBytes() {
+		byte[] data = new byte[buffer.getInt()];
+		buffer.get(data);
+		return data;
+	}
+}
@@ -0,0 +1,174 @@
+/*
+ * Eindex: Earnstone Sharded Column Index for Cassandra
+ *
+ * Copyright 2011 Corey Hulen, Earnstone Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.earnstone.index.store;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * An in-process store built on concurrent skip lists. Each row is a skip list
+ * of columns sorted by the column comparator, so slices and counts behave like
+ * a Cassandra column family without any network hops.
+ */
+public class MemoryIndexStore<N> implements IndexStore<N> {
+
+	private Comparator<? super N> comparator;
+	private ConcurrentSkipListMap<ByteBuffer, ConcurrentSkipListMap<N, byte[]>> rows = new ConcurrentSkipListMap<ByteBuffer, ConcurrentSkipListMap<N, byte[]>>();
+
+	/**
+	 * Creates a store sorting column names by their natural ordering.
+	 */
+	public MemoryIndexStore() {
+		this(null);
+	}
+
+	public MemoryIndexStore(Comparator<? super N> comparator) {
+		this.comparator = comparator;
+	}
+
+	public byte[] get(byte[] rowKey, N name) {
+		ConcurrentSkipListMap<N, byte[]> row = rows.get(ByteBuffer.wrap(rowKey));
+
+		if (row == null)
+			return null;
+		else
+			return row.get(name);
+	}
+
+	public List<IndexColumn<N>> slice(byte[] rowKey, N start, N finish, boolean reversed, int limit) {
+		List<IndexColumn<N>> list = new ArrayList<IndexColumn<N>>();
+		ConcurrentSkipListMap<N, byte[]> row = rows.get(ByteBuffer.wrap(rowKey));
+
+		if (row == null)
+			return list;
+
+		for (Map.Entry<N, byte[]> entry : getRange(row, start, finish, reversed).entrySet()) {
+			if (list.size() >= limit)
+				break;
+
+			list.add(new IndexColumn<N>(entry.getKey(), entry.getValue()));
+		}
+
+		return list;
+	}
+
+	public List<List<IndexColumn<N>>> multiget(List<byte[]> rowKeys, List<N> names) {
+		List<List<IndexColumn<N>>> list = new ArrayList<List<IndexColumn<N>>>(rowKeys.size());
+
+		for (byte[] rowKey : rowKeys) {
+			List<IndexColumn<N>> columns = new ArrayList<IndexColumn<N>>();
+			ConcurrentSkipListMap<N, byte[]> row = rows.get(ByteBuffer.wrap(rowKey));
+
+			if (row != null) {
+				for (N name : names) {
+					byte[] value = row.get(name);
+
+					if (value != null)
+						columns.add(new IndexColumn<N>(name, value));
+				}
+			}
+
+			list.add(columns);
+		}
+
+		return list;
+	}
+
+	public int count(byte[] rowKey, N start, N finish) {
+		ConcurrentSkipListMap<N, byte[]> row = rows.get(ByteBuffer.wrap(rowKey));
+
+		if (row == null)
+			return 0;
+		else
+			return getRange(row, start, finish, false).size();
+	}
+
+	public void mutate(List<IndexMutation<N>> mutations) {
+		for (IndexMutation<N> mutation : mutations) {
+			apply(mutation);
+		}
+	}
+
+	protected void apply(IndexMutation<N> mutation) {
+		ByteBuffer key = ByteBuffer.wrap(mutation.getRowKey());
+
+		if (mutation.isRowDeletion()) {
+			rows.remove(key);
+		}
+		else if (mutation.isDeletion()) {
+			ConcurrentSkipListMap<N, byte[]> row = rows.get(key);
+
+			if (row != null)
+				row.remove(mutation.getName());
+		}
+		else {
+			// a concurrent row delete may detach the row between the lookup and
+			// the put, the insert is then retried on a new row
+			while (true) {
+				ConcurrentSkipListMap<N, byte[]> row = rows.get(key);
+
+				if (row == null) {
+					ConcurrentSkipListMap<N, byte[]> newRow = new ConcurrentSkipListMap<N, byte[]>(comparator);
+					row = rows.putIfAbsent(ByteBuffer.wrap(mutation.getRowKey().clone()), newRow);
+
+					if (row == null)
+						row = newRow;
+				}
+
+				row.put(mutation.getName(), mutation.getValue());
+
+				if (rows.get(key) == row)
+					return;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of rows in the store, including rows whose columns
+	 *         have all been deleted.
+	 */
+	public int getRowCount() {
+		return rows.size();
+	}
+
+	/**
+	 * @return a live view of every row in row key order.
+	 */
+	protected ConcurrentSkipListMap<ByteBuffer, ConcurrentSkipListMap<N, byte[]>> getRows() {
+		return rows;
+	}
+
+	private NavigableMap<N, byte[]> getRange(ConcurrentSkipListMap<N, byte[]> row, N start, N finish, boolean reversed) {
+		ConcurrentNavigableMap<N, byte[]> map = reversed ? row.descendingMap() : row;
+
+		if (start != null && finish != null)
+			return map.subMap(start, true, finish, true);
+		else if (start != null)
+			return map.tailMap(start, true);
+		else if (finish != null)
+			return map.headMap(finish, true);
+		else
+			return map;
+	}
+}
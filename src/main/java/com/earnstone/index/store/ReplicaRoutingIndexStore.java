@@ -0,0 +1,326 @@
+/*
+ * Eindex: Earnstone Sharded Column Index for Cassandra
+ *
+ * Copyright 2011 Corey Hulen, Earnstone Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.earnstone.index.store;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import me.prettyprint.cassandra.service.CassandraHost;
+import me.prettyprint.cassandra.service.CassandraHostConfigurator;
+import me.prettyprint.hector.api.Cluster;
+import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.Serializer;
+import me.prettyprint.hector.api.exceptions.HectorException;
+import me.prettyprint.hector.api.factory.HFactory;
+
+import org.apache.cassandra.thrift.Cassandra;
+import org.apache.cassandra.thrift.TokenRange;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Routes every row to a store connected to a replica owning that row, so reads
+ * skip the hop from a random coordinator to the replica. Tokens are computed
+ * the way the RandomPartitioner does (the MD5 of the row key) and cached per
+ * row key, shard row keys being few and read all the time. The cache is
+ * bounded since sub-shard, reverse and change log rows are not, once full it
+ * is cleared and the busy shard rows come right back.
+ * 
+ * Rows whose owner is unknown, or whose owner fails, fall back to the default
+ * store. The ring must be fully configured before the store is used.
+ */
+public class ReplicaRoutingIndexStore<N> implements IndexStore<N> {
+
+	private static final Logger log = LoggerFactory.getLogger(ReplicaRoutingIndexStore.class);
+
+	private IndexStore<N> defaultStore;
+	// end token of a range -> store of a replica owning (previous end, end]
+	private TreeMap<BigInteger, IndexStore<N>> ring = new TreeMap<BigInteger, IndexStore<N>>();
+	private ConcurrentHashMap<ByteBuffer, IndexStore<N>> routes = new ConcurrentHashMap<ByteBuffer, IndexStore<N>>();
+	private int maxCachedRoutes = 10000;
+
+	public ReplicaRoutingIndexStore(IndexStore<N> defaultStore) {
+		this.defaultStore = defaultStore;
+	}
+
+	/**
+	 * Builds a routing store from the token ring of a live cluster. One single
+	 * host Hector cluster is created per primary replica.
+	 * 
+	 * @param defaultStore
+	 *            used for rows whose replica can't be reached.
+	 */
+	public static <N> ReplicaRoutingIndexStore<N> fromRing(Cluster cluster, Keyspace keyspace, String columnFamily, Serializer<N> nameSerializer, IndexStore<N> defaultStore) {
+		ReplicaRoutingIndexStore<N> store = new ReplicaRoutingIndexStore<N>(defaultStore);
+		CassandraHost seed = cluster.getKnownPoolHosts(false).iterator().next();
+		Map<String, IndexStore<N>> stores = new HashMap<String, IndexStore<N>>();
+
+		for (TokenRange range : describeRing(seed, keyspace.getKeyspaceName())) {
+			if (range.getEndpoints() == null || range.getEndpoints().isEmpty())
+				continue;
+
+			String endpoint = range.getEndpoints().get(0);
+			IndexStore<N> replica = stores.get(endpoint);
+
+			if (replica == null) {
+				CassandraHostConfigurator config = new CassandraHostConfigurator(endpoint + ":" + seed.getPort());
+				Cluster hostCluster = HFactory.getOrCreateCluster(cluster.getName() + "@" + endpoint, config);
+				replica = new HectorIndexStore<N>(HFactory.createKeyspace(keyspace.getKeyspaceName(), hostCluster), columnFamily, nameSerializer);
+				stores.put(endpoint, replica);
+			}
+
+			store.addRange(new BigInteger(range.getEnd_token()), replica);
+		}
+
+		log.info("Routing index rows to " + stores.size() + " replicas over " + store.ring.size() + " token ranges");
+		return store;
+	}
+
+	private static List<TokenRange> describeRing(CassandraHost host, String keyspaceName) {
+		TTransport transport = new TFramedTransport(new TSocket(host.getHost(), host.getPort()));
+
+		try {
+			transport.open();
+			Cassandra.Client client = new Cassandra.Client(new TBinaryProtocol(transport));
+			return client.describe_ring(keyspaceName);
+		}
+		catch (Exception e) {
+			throw new HectorException("Unable to describe the ring of keyspace '" + keyspaceName + "' on " + host, e);
+		}
+		finally {
+			transport.close();
+		}
+	}
+
+	/**
+	 * Adds the token range ending at endToken (inclusive) and starting after
+	 * the previous range's end token.
+	 */
+	public void addRange(BigInteger endToken, IndexStore<N> store) {
+		ring.put(endToken, store);
+		routes.clear();
+	}
+
+	/**
+	 * @return the RandomPartitioner token of a row key.
+	 */
+	public static BigInteger getToken(byte[] rowKey) {
+
+		try {
+			return new BigInteger(MessageDigest.getInstance("MD5").digest(rowKey)).abs();
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 is not available.", e);
+		}
+	}
+
+	public IndexStore<N> getStoreForRow(byte[] rowKey) {
+		ByteBuffer key = ByteBuffer.wrap(rowKey);
+		IndexStore<N> store = routes.get(key);
+
+		if (store != null)
+			return store;
+
+		if (ring.isEmpty()) {
+			store = defaultStore;
+		}
+		else {
+			Map.Entry<BigInteger, IndexStore<N>> entry = ring.ceilingEntry(getToken(rowKey));
+			store = entry == null ? ring.firstEntry().getValue() : entry.getValue();
+		}
+
+		if (maxCachedRoutes > 0) {
+			if (routes.size() >= maxCachedRoutes)
+				routes.clear();
+
+			routes.put(ByteBuffer.wrap(rowKey.clone()), store);
+		}
+
+		return store;
+	}
+
+	/**
+	 * Sets the number of row keys whose store is cached, 0 computes the token
+	 * of every row.
+	 */
+	public void setMaxCachedRoutes(int maxCachedRoutes) {
+		if (maxCachedRoutes < 0) {
+			String msg = "The number of cached routes cannot be negative.";
+			log.error(msg);
+			throw new IllegalArgumentException(msg);
+		}
+
+		this.maxCachedRoutes = maxCachedRoutes;
+		routes.clear();
+	}
+
+	public int getMaxCachedRoutes() {
+		return maxCachedRoutes;
+	}
+
+	public int getCachedRouteCount() {
+		return routes.size();
+	}
+
+	public byte[] get(byte[] rowKey, N name) {
+		IndexStore<N> store = getStoreForRow(rowKey);
+
+		try {
+			return store.get(rowKey, name);
+		}
+		catch (HectorException e) {
+			if (store == defaultStore)
+				throw e;
+
+			log.warn("Replica read failed, falling back to the default store", e);
+			return defaultStore.get(rowKey, name);
+		}
+	}
+
+	public List<IndexColumn<N>> slice(byte[] rowKey, N start, N finish, boolean reversed, int limit) {
+		IndexStore<N> store = getStoreForRow(rowKey);
+
+		try {
+			return store.slice(rowKey, start, finish, reversed, limit);
+		}
+		catch (HectorException e) {
+			if (store == defaultStore)
+				throw e;
+
+			log.warn("Replica read failed, falling back to the default store", e);
+			return defaultStore.slice(rowKey, start, finish, reversed, limit);
+		}
+	}
+
+	/**
+	 * Splits the row keys by replica and sends one multiget per replica.
+	 */
+	public List<List<IndexColumn<N>>> multiget(List<byte[]> rowKeys, List<N> names) {
+		Map<IndexStore<N>, List<Integer>> groups = new IdentityHashMap<IndexStore<N>, List<Integer>>();
+
+		for (int i = 0; i < rowKeys.size(); i++) {
+			IndexStore<N> store = getStoreForRow(rowKeys.get(i));
+			List<Integer> group = groups.get(store);
+
+			if (group == null) {
+				group = new ArrayList<Integer>();
+				groups.put(store, group);
+			}
+
+			group.add(i);
+		}
+
+		List<List<IndexColumn<N>>> list = new ArrayList<List<IndexColumn<N>>>(rowKeys.size());
+		for (int i = 0; i < rowKeys.size(); i++) {
+			list.add(null);
+		}
+
+		for (Map.Entry<IndexStore<N>, List<Integer>> group : groups.entrySet()) {
+			List<byte[]> keys = new ArrayList<byte[]>(group.getValue().size());
+
+			for (Integer i : group.getValue()) {
+				keys.add(rowKeys.get(i));
+			}
+
+			List<List<IndexColumn<N>>> rows;
+
+			try {
+				rows = group.getKey().multiget(keys, names);
+			}
+			catch (HectorException e) {
+				if (group.getKey() == defaultStore)
+					throw e;
+
+				log.warn("Replica read failed, falling back to the default store", e);
+				rows = defaultStore.multiget(keys, names);
+			}
+
+			for (int i = 0; i < keys.size(); i++) {
+				list.set(group.getValue().get(i), rows.get(i));
+			}
+		}
+
+		return list;
+	}
+
+	public int count(byte[] rowKey, N start, N finish) {
+		IndexStore<N> store = getStoreForRow(rowKey);
+
+		try {
+			return store.count(rowKey, start, finish);
+		}
+		catch (HectorException e) {
+			if (store == defaultStore)
+				throw e;
+
+			log.warn("Replica read failed, falling back to the default store", e);
+			return defaultStore.count(rowKey, start, finish);
+		}
+	}
+
+	/**
+	 * Splits the mutations by replica, keeping the order of the mutations of
+	 * each row. The mutations are idempotent so a failed replica batch is
+	 * resent through the default store.
+	 */
+	public void mutate(List<IndexMutation<N>> mutations) {
+		Map<IndexStore<N>, List<IndexMutation<N>>> groups = new IdentityHashMap<IndexStore<N>, List<IndexMutation<N>>>();
+
+		for (IndexMutation<N> mutation : mutations) {
+			IndexStore<N> store = getStoreForRow(mutation.getRowKey());
+			List<IndexMutation<N>> group = groups.get(store);
+
+			if (group == null) {
+				group = new ArrayList<IndexMutation<N>>();
+				groups.put(store, group);
+			}
+
+			group.add(mutation);
+		}
+
+		for (Map.Entry<IndexStore<N>, List<IndexMutation<N>>> group : groups.entrySet()) {
+			try {
+				group.getKey().mutate(group.getValue());
+			}
+			catch (HectorException e) {
+				if (group.getKey() == defaultStore)
+					throw e;
+
+				log.warn("Replica write failed, falling back to the default store", e);
+				defaultStore.mutate(group.getValue());
+			}
+		}
+	}
+
+	public IndexStore<N> getDefaultStore() {
+		return defaultStore;
+	}
+}
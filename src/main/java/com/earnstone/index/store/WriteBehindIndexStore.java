@@ -0,0 +1,442 @@
+/*
+ * Eindex: Earnstone Sharded Column Index for Cassandra
+ *
+ * Copyright 2011 Corey Hulen, Earnstone Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.earnstone.index.store;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Buffers mutations in memory and writes them to another store in batches.
+ * Repeated mutations of the same row and column are coalesced so only the
+ * last one is written, and a delete replaces any buffered insert of the same
+ * column. The buffer is flushed when it holds maxPending columns, every
+ * flushIntervalMillis and on close.
+ * 
+ * Reads see the buffered mutations. A writer that fills the buffer flushes it
+ * on its own thread, which holds back other writers until the flush is done.
+ */
+public class WriteBehindIndexStore<N> implements IndexStore<N>, Closeable {
+
+	private static final Logger log = LoggerFactory.getLogger(WriteBehindIndexStore.class);
+
+	private IndexStore<N> store;
+	private Comparator<? super N> comparator;
+	private int maxPending;
+	private ScheduledExecutorService scheduler;
+	private Object flushLock = new Object();
+
+	private Buffer pending = new Buffer();
+	private Buffer flushing;
+
+	private class RowBuffer {
+
+		private boolean deleted;
+		// a null value is a buffered column delete
+		private TreeMap<N, byte[]> columns = new TreeMap<N, byte[]>(comparator);
+	}
+
+	private class Buffer {
+
+		private Map<ByteBuffer, RowBuffer> rows = new HashMap<ByteBuffer, RowBuffer>();
+		private int size;
+
+		private RowBuffer getOrCreate(byte[] rowKey) {
+			ByteBuffer key = ByteBuffer.wrap(rowKey);
+			RowBuffer row = rows.get(key);
+
+			if (row == null) {
+				row = new RowBuffer();
+				rows.put(key, row);
+			}
+
+			return row;
+		}
+
+		private void add(IndexMutation<N> mutation) {
+			RowBuffer row = getOrCreate(mutation.getRowKey());
+
+			if (mutation.isRowDeletion()) {
+				size -= row.columns.size();
+				row.columns.clear();
+				row.deleted = true;
+			}
+			else {
+				if (!row.columns.containsKey(mutation.getName()))
+					size++;
+
+				row.columns.put(mutation.getName(), mutation.getValue());
+			}
+		}
+	}
+
+	public WriteBehindIndexStore(IndexStore<N> store, int maxPending, long flushIntervalMillis) {
+		this(store, null, maxPending, flushIntervalMillis);
+	}
+
+	/**
+	 * @param store
+	 *            the store the buffered mutations are written to.
+	 * @param comparator
+	 *            the column name ordering of the store or null for the natural
+	 *            ordering.
+	 * @param maxPending
+	 *            the number of buffered columns that triggers a flush.
+	 * @param flushIntervalMillis
+	 *            the time between background flushes or 0 to only flush on
+	 *            size and close.
+	 */
+	public WriteBehindIndexStore(IndexStore<N> store, Comparator<? super N> comparator, int maxPending, long flushIntervalMillis) {
+		this.store = store;
+		this.comparator = comparator;
+		this.maxPending = maxPending;
+
+		if (flushIntervalMillis > 0) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "eindex-write-behind");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					try {
+						flush();
+					}
+					catch (RuntimeException e) {
+						log.warn("Background flush of write-behind buffer failed, will retry", e);
+					}
+				}
+			}, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public byte[] get(byte[] rowKey, N name) {
+		ByteBuffer key = ByteBuffer.wrap(rowKey);
+
+		synchronized (this) {
+			for (Buffer buffer : getBuffers()) {
+				RowBuffer row = buffer.rows.get(key);
+
+				if (row != null) {
+					if (row.columns.containsKey(name))
+						return row.columns.get(name);
+					else if (row.deleted)
+						return null;
+				}
+			}
+		}
+
+		return store.get(rowKey, name);
+	}
+
+	public List<IndexColumn<N>> slice(byte[] rowKey, N start, N finish, boolean reversed, int limit) {
+		List<RowBuffer> buffered = getRowBuffers(rowKey);
+
+		if (buffered.isEmpty())
+			return store.slice(rowKey, start, finish, reversed, limit);
+
+		boolean deleted = false;
+		int deletes = 0;
+
+		for (RowBuffer row : buffered) {
+			deleted |= row.deleted;
+
+			for (byte[] value : row.columns.values()) {
+				if (value == null)
+					deletes++;
+			}
+		}
+
+		TreeMap<N, byte[]> merged = new TreeMap<N, byte[]>(comparator);
+		N last = null;
+		boolean truncated = false;
+
+		if (!deleted) {
+			int fetch = limit > Integer.MAX_VALUE - deletes ? Integer.MAX_VALUE : limit + deletes;
+			List<IndexColumn<N>> columns = store.slice(rowKey, start, finish, reversed, fetch);
+
+			for (IndexColumn<N> column : columns) {
+				merged.put(column.getName(), column.getValue());
+			}
+
+			if (columns.size() == fetch) {
+				truncated = true;
+				last = columns.get(columns.size() - 1).getName();
+			}
+		}
+
+		// oldest buffer first so newer mutations win
+		for (int i = buffered.size() - 1; i >= 0; i--) {
+			RowBuffer row = buffered.get(i);
+
+			if (row.deleted)
+				merged.clear();
+
+			for (Map.Entry<N, byte[]> column : row.columns.entrySet()) {
+				if (column.getValue() == null)
+					merged.remove(column.getKey());
+				else if (inRange(column.getKey(), start, finish, reversed))
+					merged.put(column.getKey(), column.getValue());
+			}
+		}
+
+		List<IndexColumn<N>> list = new ArrayList<IndexColumn<N>>();
+
+		for (Map.Entry<N, byte[]> column : (reversed ? merged.descendingMap() : merged).entrySet()) {
+			if (list.size() >= limit)
+				break;
+
+			// past the end of what the store returned we can't know what is
+			// missing
+			if (truncated && compare(column.getKey(), last) * (reversed ? -1 : 1) > 0)
+				break;
+
+			list.add(new IndexColumn<N>(column.getKey(), column.getValue()));
+		}
+
+		return list;
+	}
+
+	public List<List<IndexColumn<N>>> multiget(List<byte[]> rowKeys, List<N> names) {
+		List<List<IndexColumn<N>>> rows = store.multiget(rowKeys, names);
+		List<List<IndexColumn<N>>> list = new ArrayList<List<IndexColumn<N>>>(rowKeys.size());
+
+		for (int i = 0; i < rowKeys.size(); i++) {
+			List<RowBuffer> buffered = getRowBuffers(rowKeys.get(i));
+
+			if (buffered.isEmpty()) {
+				list.add(rows.get(i));
+				continue;
+			}
+
+			Map<N, byte[]> merged = new TreeMap<N, byte[]>(comparator);
+
+			for (IndexColumn<N> column : rows.get(i)) {
+				merged.put(column.getName(), column.getValue());
+			}
+
+			for (int b = buffered.size() - 1; b >= 0; b--) {
+				RowBuffer row = buffered.get(b);
+
+				if (row.deleted)
+					merged.clear();
+
+				for (N name : names) {
+					if (row.columns.containsKey(name)) {
+						byte[] value = row.columns.get(name);
+
+						if (value == null)
+							merged.remove(name);
+						else
+							merged.put(name, value);
+					}
+				}
+			}
+
+			List<IndexColumn<N>> columns = new ArrayList<IndexColumn<N>>(merged.size());
+			for (Map.Entry<N, byte[]> column : merged.entrySet()) {
+				columns.add(new IndexColumn<N>(column.getKey(), column.getValue()));
+			}
+
+			list.add(columns);
+		}
+
+		return list;
+	}
+
+	/**
+	 * Flushes the buffer first if it holds mutations for the row, so the count
+	 * comes straight from the store.
+	 */
+	public int count(byte[] rowKey, N start, N finish) {
+		if (!getRowBuffers(rowKey).isEmpty())
+			flush();
+
+		return store.count(rowKey, start, finish);
+	}
+
+	public void mutate(List<IndexMutation<N>> mutations) {
+		boolean full;
+
+		synchronized (this) {
+			for (IndexMutation<N> mutation : mutations) {
+				pending.add(mutation);
+			}
+
+			full = pending.size >= maxPending;
+		}
+
+		if (full)
+			flush();
+	}
+
+	/**
+	 * Writes every buffered mutation to the store. Row deletes are written in
+	 * a batch of their own before the column mutations so they can't remove
+	 * columns buffered after them. If the write fails the mutations are put
+	 * back in the buffer.
+	 */
+	public void flush() {
+		synchronized (flushLock) {
+			Buffer batch;
+
+			synchronized (this) {
+				if (pending.rows.isEmpty())
+					return;
+
+				batch = pending;
+				flushing = batch;
+				pending = new Buffer();
+			}
+
+			List<IndexMutation<N>> rowDeletes = new ArrayList<IndexMutation<N>>();
+			List<IndexMutation<N>> columns = new ArrayList<IndexMutation<N>>(batch.size);
+
+			for (Map.Entry<ByteBuffer, RowBuffer> entry : batch.rows.entrySet()) {
+				byte[] rowKey = entry.getKey().array();
+
+				if (entry.getValue().deleted)
+					rowDeletes.add(IndexMutation.<N> deleteRow(rowKey));
+
+				for (Map.Entry<N, byte[]> column : entry.getValue().columns.entrySet()) {
+					if (column.getValue() == null)
+						columns.add(IndexMutation.delete(rowKey, column.getKey()));
+					else
+						columns.add(IndexMutation.insert(rowKey, column.getKey(), column.getValue()));
+				}
+			}
+
+			try {
+				store.mutate(rowDeletes);
+				store.mutate(columns);
+			}
+			catch (RuntimeException e) {
+				synchronized (this) {
+					restore(batch);
+					flushing = null;
+				}
+
+				throw e;
+			}
+
+			synchronized (this) {
+				flushing = null;
+			}
+		}
+	}
+
+	/**
+	 * Stops the background flush and writes out the buffer.
+	 */
+	public void close() {
+		if (scheduler != null)
+			scheduler.shutdown();
+
+		flush();
+	}
+
+	public synchronized int getPendingCount() {
+		return pending.size;
+	}
+
+	public IndexStore<N> getStore() {
+		return store;
+	}
+
+	private void restore(Buffer batch) {
+		Buffer newer = pending;
+		pending = batch;
+
+		for (Map.Entry<ByteBuffer, RowBuffer> entry : newer.rows.entrySet()) {
+			byte[] rowKey = entry.getKey().array();
+
+			if (entry.getValue().deleted)
+				pending.add(IndexMutation.<N> deleteRow(rowKey));
+
+			for (Map.Entry<N, byte[]> column : entry.getValue().columns.entrySet()) {
+				if (column.getValue() == null)
+					pending.add(IndexMutation.delete(rowKey, column.getKey()));
+				else
+					pending.add(IndexMutation.insert(rowKey, column.getKey(), column.getValue()));
+			}
+		}
+	}
+
+	/**
+	 * @return the buffers newest first.
+	 */
+	private List<Buffer> getBuffers() {
+		List<Buffer> list = new ArrayList<Buffer>(2);
+		list.add(pending);
+
+		if (flushing != null)
+			list.add(flushing);
+
+		return list;
+	}
+
+	/**
+	 * @return copies of the buffered mutations for a row, newest first.
+	 */
+	private synchronized List<RowBuffer> getRowBuffers(byte[] rowKey) {
+		ByteBuffer key = ByteBuffer.wrap(rowKey);
+		List<RowBuffer> list = new ArrayList<RowBuffer>(2);
+
+		for (Buffer buffer : getBuffers()) {
+			RowBuffer row = buffer.rows.get(key);
+
+			if (row != null) {
+				RowBuffer copy = new RowBuffer();
+				copy.deleted = row.deleted;
+				copy.columns.putAll(row.columns);
+				list.add(copy);
+			}
+		}
+
+		return list;
+	}
+
+	private boolean inRange(N name, N start, N finish, boolean reversed) {
+		N low = reversed ? finish : start;
+		N high = reversed ? start : finish;
+		return (low == null || compare(name, low) >= 0) && (high == null || compare(name, high) <= 0);
+	}
+
+	@SuppressWarnings("unchecked")
+	private int compare(N o1, N o2) {
+		if (comparator != null)
+			return comparator.compare(o1, o2);
+		else
+			return ((Comparable<? super N>) o1).compareTo(o2);
+	}
+}
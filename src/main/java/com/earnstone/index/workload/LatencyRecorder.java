@@ -0,0 +1,146 @@
+/*
+ * Eindex: Earnstone Sharded Column Index for Cassandra
+ *
+ * Copyright 2011 Corey Hulen, Earnstone Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.earnstone.index.workload;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A lock free latency histogram in microseconds. Buckets are exact below 16us
+ * and split every power of two into 16 buckets above, so any recorded value
+ * is reported within 1/16th of its true value.
+ * 
+ * Latencies are kept both for the current interval and since the start.
+ */
+public class LatencyRecorder {
+
+	private static final int SUB_BUCKETS = 16;
+	private static final int BUCKETS = (64 - 3) * SUB_BUCKETS;
+
+	private AtomicReference<AtomicLongArray> interval = new AtomicReference<AtomicLongArray>(new AtomicLongArray(BUCKETS));
+	private AtomicLongArray total = new AtomicLongArray(BUCKETS);
+
+	/**
+	 * A frozen copy of a histogram.
+	 */
+	public static class Snapshot {
+
+		private long[] counts;
+		private long count;
+
+		Snapshot(AtomicLongArray buckets) {
+			counts = new long[BUCKETS];
+
+			for (int i = 0; i < BUCKETS; i++) {
+				counts[i] = buckets.get(i);
+				count += counts[i];
+			}
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @param percentile
+		 *            between 0 and 100.
+		 * @return the latency in microseconds at or below which the given
+		 *         percentage of the samples fall, 0 if there are none.
+		 */
+		public long getPercentile(double percentile) {
+			if (count == 0)
+				return 0;
+
+			long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+			long seen = 0;
+
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += counts[i];
+
+				if (seen >= rank)
+					return getBucketValue(i);
+			}
+
+			return getMax();
+		}
+
+		public long getMax() {
+			for (int i = BUCKETS - 1; i >= 0; i--) {
+				if (counts[i] > 0)
+					return getBucketValue(i);
+			}
+
+			return 0;
+		}
+
+		public double getMean() {
+			if (count == 0)
+				return 0;
+
+			double sum = 0;
+
+			for (int i = 0; i < BUCKETS; i++) {
+				sum += (double) counts[i] * getBucketValue(i);
+			}
+
+			return sum / count;
+		}
+	}
+
+	public void record(long nanos) {
+		int bucket = getBucket(Math.max(0, nanos / 1000));
+		interval.get().incrementAndGet(bucket);
+		total.incrementAndGet(bucket);
+	}
+
+	/**
+	 * @return the latencies recorded since the last call and starts a new
+	 *         interval.
+	 */
+	public Snapshot takeInterval() {
+		return new Snapshot(interval.getAndSet(new AtomicLongArray(BUCKETS)));
+	}
+
+	/**
+	 * @return every latency recorded since the recorder was created.
+	 */
+	public Snapshot getTotal() {
+		return new Snapshot(total);
+	}
+
+	static int getBucket(long micros) {
+		if (micros < SUB_BUCKETS)
+			return (int) micros;
+
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		int sub = (int) (micros >>> (exponent - 4)) & (SUB_BUCKETS - 1);
+		return (exponent - 3) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @return the largest latency of a bucket.
+	 */
+	static long getBucketValue(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+
+		int exponent = bucket / SUB_BUCKETS + 3;
+		long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - 4);
+		return lower + (1L << (exponent - 4)) - 1;
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * Eindex: Earnstone Sharded Column Index for Cassandra
+ *
+ * Copyright 2011 Corey Hulen, Earnstone Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.earnstone.index.workload;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The scenario of a workload run read from a properties file. Every setting
+ * has a default so an empty file runs a small in-memory scenario.
+ */
+public class WorkloadConfig {
+
+	private static final Logger log = LoggerFactory.getLogger(WorkloadConfig.class);
+
+	private Properties properties;
+
+	public WorkloadConfig(Properties properties) {
+		this.properties = properties;
+	}
+
+	public static WorkloadConfig load(File file) throws IOException {
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream(file);
+
+		try {
+			properties.load(in);
+		}
+		finally {
+			in.close();
+		}
+
+		return new WorkloadConfig(properties);
+	}
+
+	public String getString(String key, String defaultValue) {
+		String value = properties.getProperty(key);
+		return value == null ? defaultValue : value.trim();
+	}
+
+	public int getInt(String key, int defaultValue) {
+		return (int) getLong(key, defaultValue);
+	}
+
+	public long getLong(String key, long defaultValue) {
+		String value = getString(key, null);
+
+		try {
+			return value == null ? defaultValue : Long.parseLong(value);
+		}
+		catch (NumberFormatException e) {
+			throw invalid(key, value);
+		}
+	}
+
+	public double getDouble(String key, double defaultValue) {
+		String value = getString(key, null);
+
+		try {
+			return value == null ? defaultValue : Double.parseDouble(value);
+		}
+		catch (NumberFormatException e) {
+			throw invalid(key, value);
+		}
+	}
+
+	public boolean getBoolean(String key, boolean defaultValue) {
+		String value = getString(key, null);
+		return value == null ? defaultValue : Boolean.parseBoolean(value);
+	}
+
+	public void set(String key, String value) {
+		properties.setProperty(key, value);
+	}
+
+	private IllegalArgumentException invalid(String key, String value) {
+		String msg = "Invalid value '" + value + "' for workload setting '" + key + "'";
+		log.error(msg);
+		return new IllegalArgumentException(msg);
+	}
+}
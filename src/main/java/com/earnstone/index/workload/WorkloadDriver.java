@@ -0,0 +1,455 @@
+/*
+ * Eindex: Earnstone Sharded Column Index for Cassandra
+ *
+ * Copyright 2011 Corey Hulen, Earnstone Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.earnstone.index.workload;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import me.prettyprint.cassandra.model.BasicColumnFamilyDefinition;
+import me.prettyprint.cassandra.service.ThriftCfDef;
+import me.prettyprint.cassandra.testutils.EmbeddedServerHelper;
+import me.prettyprint.hector.api.Cluster;
+import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.ddl.ColumnFamilyDefinition;
+import me.prettyprint.hector.api.ddl.ComparatorType;
+import me.prettyprint.hector.api.ddl.KeyspaceDefinition;
+import me.prettyprint.hector.api.factory.HFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.earnstone.index.ShardedLongIndex;
+import com.earnstone.index.store.MemoryIndexStore;
+
+/**
+ * Runs a configurable mix of reads, adds, removes and range scans against a
+ * ShardedLongIndex and reports throughput and latency percentiles every
+ * interval, to find the sustained capacity of an index configuration and
+ * spot regressions between builds.
+ * 
+ * Usage: WorkloadDriver [scenario.properties]
+ * 
+ * <pre>
+ * backend=memory                  memory or cassandra
+ * cassandra.embedded=false        start an embedded Cassandra (needs cassandra.yaml on the classpath)
+ * cassandra.hosts=localhost:9160
+ * cassandra.keyspace=WorkloadKS   created if missing
+ * cassandra.columnFamily=WorkloadCF
+ * index.name=workload
+ * index.offHeapBoundaries=false
+ * keys.count=1000000              keys are 0 to keys.count - 1
+ * keys.distribution=zipfian       zipfian or uniform
+ * keys.zipfian.theta=0.99
+ * shards.count=100                boundaries evenly spread over the keys
+ * preload.count=10000
+ * multiValue.proportion=0.1       share of adds going to the multiValue.hotKeys hottest keys
+ * multiValue.hotKeys=100
+ * ops.read=0.5                    relative weights of the operations
+ * ops.add=0.3
+ * ops.remove=0.05
+ * ops.scan=0.15
+ * scan.limit=100
+ * scan.nearBoundary=0.5           share of scans starting just before a boundary
+ * threads=8
+ * ops.target=0                    total operations per second, 0 for no limit
+ * duration.seconds=60
+ * report.interval.seconds=10
+ * seed=0                          0 for a random seed
+ * </pre>
+ * 
+ * With a target rate latencies are measured from the time an operation was
+ * scheduled to start, so a stalled index shows up in the percentiles instead
+ * of only lowering the throughput.
+ */
+public class WorkloadDriver {
+
+	private static final Logger log = LoggerFactory.getLogger(WorkloadDriver.class);
+
+	public enum Operation {
+		READ, ADD, REMOVE, SCAN
+	}
+
+	private WorkloadConfig config;
+	private ShardedLongIndex index;
+	private EmbeddedServerHelper embedded;
+	private ZipfianGenerator zipfian;
+	private long keyCount;
+	private long[] boundaries;
+	private double[] weights = new double[Operation.values().length];
+	// read once, execute runs inside the latency window
+	private double multiValueProportion;
+	private long hotKeys;
+	private int scanLimit;
+	private double scanNearBoundary;
+	private Map<Operation, LatencyRecorder> recorders = new EnumMap<Operation, LatencyRecorder>(Operation.class);
+	private AtomicLong errors = new AtomicLong();
+	private AtomicLong nextValue = new AtomicLong();
+	private volatile boolean running;
+
+	public WorkloadDriver(WorkloadConfig config) {
+		this.config = config;
+		this.keyCount = config.getLong("keys.count", 1000000);
+		this.multiValueProportion = config.getDouble("multiValue.proportion", 0.1);
+		this.hotKeys = Math.max(1, Math.min(keyCount, config.getLong("multiValue.hotKeys", 100)));
+		this.scanLimit = config.getInt("scan.limit", 100);
+		this.scanNearBoundary = config.getDouble("scan.nearBoundary", 0.5);
+
+		weights[Operation.READ.ordinal()] = config.getDouble("ops.read", 0.5);
+		weights[Operation.ADD.ordinal()] = config.getDouble("ops.add", 0.3);
+		weights[Operation.REMOVE.ordinal()] = config.getDouble("ops.remove", 0.05);
+		weights[Operation.SCAN.ordinal()] = config.getDouble("ops.scan", 0.15);
+
+		double sum = 0;
+		for (int i = 0; i < weights.length; i++) {
+			sum += weights[i];
+			weights[i] = sum;
+		}
+
+		if (sum <= 0) {
+			String msg = "At least one operation weight must be positive.";
+			log.error(msg);
+			throw new IllegalArgumentException(msg);
+		}
+
+		for (int i = 0; i < weights.length; i++) {
+			weights[i] /= sum;
+		}
+
+		for (Operation operation : Operation.values()) {
+			recorders.put(operation, new LatencyRecorder());
+		}
+
+		if ("zipfian".equals(config.getString("keys.distribution", "zipfian")))
+			zipfian = new ZipfianGenerator(keyCount, config.getDouble("keys.zipfian.theta", ZipfianGenerator.DEFAULT_THETA), true);
+	}
+
+	public static void main(String[] args) throws Exception {
+		WorkloadConfig config = args.length > 0 ? WorkloadConfig.load(new File(args[0])) : new WorkloadConfig(new Properties());
+		WorkloadDriver driver = new WorkloadDriver(config);
+
+		try {
+			driver.open();
+			driver.run(System.out);
+		}
+		finally {
+			driver.close();
+		}
+	}
+
+	/**
+	 * Creates the index on the configured backend and preloads it.
+	 */
+	public void open() throws Exception {
+		String name = config.getString("index.name", "workload");
+		String backend = config.getString("backend", "memory");
+		boolean offHeap = config.getBoolean("index.offHeapBoundaries", false);
+
+		if ("memory".equals(backend)) {
+			index = new ShardedLongIndex(new MemoryIndexStore<Long>(), name, null, offHeap);
+		}
+		else if ("cassandra".equals(backend)) {
+			index = openCassandraIndex(name, offHeap);
+		}
+		else {
+			String msg = "Unknown workload backend '" + backend + "'";
+			log.error(msg);
+			throw new IllegalArgumentException(msg);
+		}
+
+		int shardCount = config.getInt("shards.count", 100);
+		List<Long> list = new ArrayList<Long>();
+
+		for (int i = 1; i < shardCount; i++) {
+			list.add(keyCount * i / shardCount);
+		}
+
+		index.initializeShardBoundries(list);
+
+		List<Long> current = index.getShardBoundries();
+		boundaries = new long[current.size()];
+		for (int i = 0; i < boundaries.length; i++) {
+			boundaries[i] = current.get(i);
+		}
+
+		Random random = new Random(getSeed());
+		long preload = config.getLong("preload.count", 10000);
+
+		for (long i = 0; i < preload; i++) {
+			index.addToIndex(nextKey(random), nextValue.incrementAndGet());
+		}
+
+		log.info("Workload index '" + name + "' ready on " + backend + " with " + boundaries.length + " boundaries and " + preload + " preloaded values");
+	}
+
+	private ShardedLongIndex openCassandraIndex(String name, boolean offHeap) throws Exception {
+		String hosts = config.getString("cassandra.hosts", "localhost:9160");
+		String keyspaceName = config.getString("cassandra.keyspace", "WorkloadKS");
+		String columnFamily = config.getString("cassandra.columnFamily", "WorkloadCF");
+
+		if (config.getBoolean("cassandra.embedded", false)) {
+			embedded = new EmbeddedServerHelper();
+			embedded.setup();
+			hosts = "localhost:9170";
+		}
+
+		Cluster cluster = HFactory.getOrCreateCluster("WorkloadCluster", hosts);
+		boolean exists = false;
+
+		for (KeyspaceDefinition definition : cluster.describeKeyspaces()) {
+			if (definition.getName().equals(keyspaceName))
+				exists = true;
+		}
+
+		if (!exists) {
+			BasicColumnFamilyDefinition columnFamilyDefinition = new BasicColumnFamilyDefinition();
+			columnFamilyDefinition.setKeyspaceName(keyspaceName);
+			columnFamilyDefinition.setName(columnFamily);
+			columnFamilyDefinition.setComparatorType(ComparatorType.LONGTYPE);
+			ColumnFamilyDefinition cfDef = new ThriftCfDef(columnFamilyDefinition);
+			cluster.addKeyspace(HFactory.createKeyspaceDefinition(keyspaceName, "org.apache.cassandra.locator.SimpleStrategy", 1, Arrays.asList(cfDef)));
+		}
+
+		Keyspace keyspace = HFactory.createKeyspace(keyspaceName, cluster);
+		return new ShardedLongIndex(cluster, keyspace, columnFamily, name, null, offHeap);
+	}
+
+	/**
+	 * Runs the workload for the configured duration, printing a line per
+	 * interval and a summary at the end.
+	 * 
+	 * @return the number of operations run.
+	 */
+	public long run(PrintStream out) throws InterruptedException {
+		int threads = config.getInt("threads", 8);
+		long target = config.getLong("ops.target", 0);
+		long durationMillis = config.getLong("duration.seconds", 60) * 1000;
+		long intervalMillis = Math.max(1, config.getLong("report.interval.seconds", 10)) * 1000;
+		final long periodNanos = target > 0 ? 1000000000L * threads / target : 0;
+		final long seed = getSeed();
+
+		running = true;
+		List<Thread> workers = new ArrayList<Thread>();
+
+		for (int i = 0; i < threads; i++) {
+			final Random random = new Random(seed + i + 1);
+
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					work(random, periodNanos);
+				}
+			}, "eindex-workload-" + i);
+
+			thread.setDaemon(true);
+			workers.add(thread);
+		}
+
+		long start = System.currentTimeMillis();
+		long end = start + durationMillis;
+
+		for (Thread thread : workers) {
+			thread.start();
+		}
+
+		long nextReport = start + intervalMillis;
+
+		while (true) {
+			long now = System.currentTimeMillis();
+
+			if (now >= end)
+				break;
+
+			Thread.sleep(Math.max(0, Math.min(nextReport, end) - now));
+
+			if (System.currentTimeMillis() >= nextReport) {
+				report(out, (nextReport - start) / 1000, intervalMillis, false);
+				nextReport += intervalMillis;
+			}
+		}
+
+		running = false;
+
+		for (Thread thread : workers) {
+			thread.join();
+		}
+
+		return report(out, (System.currentTimeMillis() - start) / 1000, System.currentTimeMillis() - start, true);
+	}
+
+	private void work(Random random, long periodNanos) {
+		long intended = System.nanoTime();
+
+		while (running) {
+			long started;
+
+			if (periodNanos > 0) {
+				intended += periodNanos;
+				long wait = intended - System.nanoTime();
+
+				if (wait > 0) {
+					try {
+						Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+					}
+					catch (InterruptedException e) {
+						return;
+					}
+				}
+
+				started = intended;
+			}
+			else {
+				started = System.nanoTime();
+			}
+
+			Operation operation = nextOperation(random);
+
+			try {
+				execute(operation, random);
+				recorders.get(operation).record(System.nanoTime() - started);
+			}
+			catch (RuntimeException e) {
+				errors.incrementAndGet();
+				log.debug("Workload " + operation + " failed", e);
+			}
+		}
+	}
+
+	protected void execute(Operation operation, Random random) {
+		switch (operation) {
+		case READ:
+			index.getValuesForIndex(nextKey(random), 100);
+			break;
+
+		case ADD:
+			long key;
+
+			if (random.nextDouble() < multiValueProportion)
+				key = nextHotKey(random);
+			else
+				key = nextKey(random);
+
+			index.addToIndex(key, nextValue.incrementAndGet());
+			break;
+
+		case REMOVE:
+			key = nextKey(random);
+			Long value = index.getValueForIndex(key);
+
+			if (value != null)
+				index.removeValueAtIndex(key, value);
+
+			break;
+
+		case SCAN:
+			long start;
+
+			if (boundaries.length > 0 && random.nextDouble() < scanNearBoundary)
+				start = Math.max(0, boundaries[random.nextInt(boundaries.length)] - random.nextInt(scanLimit));
+			else
+				start = nextKey(random);
+
+			index.getValueRangesForIndex(start, random.nextBoolean(), scanLimit, 10);
+			break;
+		}
+	}
+
+	private long report(PrintStream out, long elapsedSeconds, long periodMillis, boolean summary) {
+		StringBuilder sb = new StringBuilder();
+		long ops = 0;
+
+		sb.append(summary ? "[total" : "[").append(String.format("%5ds", elapsedSeconds)).append("]");
+		StringBuilder details = new StringBuilder();
+
+		for (Operation operation : Operation.values()) {
+			LatencyRecorder.Snapshot snapshot = summary ? recorders.get(operation).getTotal() : recorders.get(operation).takeInterval();
+			ops += snapshot.getCount();
+
+			if (snapshot.getCount() == 0)
+				continue;
+
+			details.append(String.format(" | %s n=%d p50=%dus p95=%dus p99=%dus p999=%dus max=%dus", operation, snapshot.getCount(), snapshot.getPercentile(50),
+					snapshot.getPercentile(95), snapshot.getPercentile(99), snapshot.getPercentile(99.9), snapshot.getMax()));
+		}
+
+		sb.append(String.format(" ops=%d (%.1f/s) errors=%d", ops, ops * 1000.0 / Math.max(1, periodMillis), errors.get()));
+		out.println(sb.append(details));
+		return ops;
+	}
+
+	private Operation nextOperation(Random random) {
+		double r = random.nextDouble();
+
+		for (Operation operation : Operation.values()) {
+			if (r < weights[operation.ordinal()])
+				return operation;
+		}
+
+		return Operation.SCAN;
+	}
+
+	protected long nextKey(Random random) {
+		if (zipfian != null)
+			return zipfian.next(random);
+		else
+			return (random.nextLong() & Long.MAX_VALUE) % keyCount;
+	}
+
+	private long nextHotKey(Random random) {
+		long rank = (random.nextLong() & Long.MAX_VALUE) % hotKeys;
+		return zipfian != null ? zipfian.getItem(rank) : rank * (keyCount / hotKeys);
+	}
+
+	private long getSeed() {
+		long seed = config.getLong("seed", 0);
+		return seed == 0 ? System.nanoTime() : seed;
+	}
+
+	public ShardedLongIndex getIndex() {
+		return index;
+	}
+
+	public LatencyRecorder getRecorder(Operation operation) {
+		return recorders.get(operation);
+	}
+
+	public long getErrorCount() {
+		return errors.get();
+	}
+
+	public void close() {
+		running = false;
+
+		if (embedded != null) {
+			try {
+				embedded.teardown();
+			}
+			catch (Exception e) {
+				log.warn("Unable to stop the embedded Cassandra", e);
+			}
+
+			embedded = null;
+		}
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * Eindex: Earnstone Sharded Column Index for Cassandra
+ *
+ * Copyright 2011 Corey Hulen, Earnstone Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.earnstone.index.workload;
+
+import java.util.Random;
+
+/**
+ * Draws item numbers from 0 to items - 1 with a Zipfian distribution, item 0
+ * being the most popular. This is the algorithm from "Quickly Generating
+ * Billion-Record Synthetic Databases" (Gray et al.), as used by YCSB. The
+ * zeta constant is computed once in O(items).
+ * 
+ * When scrambled the ranks are hashed over the item space so the popular
+ * items don't all land in the first shard.
+ */
+public class ZipfianGenerator {
+
+	public static final double DEFAULT_THETA = 0.99;
+
+	private long items;
+	private double theta;
+	private double zetan;
+	private double alpha;
+	private double eta;
+	private boolean scrambled;
+
+	public ZipfianGenerator(long items, double theta, boolean scrambled) {
+		if (items < 2 || theta <= 0 || theta >= 1)
+			throw new IllegalArgumentException("A Zipfian generator needs at least 2 items and a theta between 0 and 1.");
+
+		this.items = items;
+		this.theta = theta;
+		this.scrambled = scrambled;
+
+		zetan = zeta(items, theta);
+		alpha = 1.0 / (1.0 - theta);
+		eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta(2, theta) / zetan);
+	}
+
+	public long next(Random random) {
+		double u = random.nextDouble();
+		double uz = u * zetan;
+		long rank;
+
+		if (uz < 1.0)
+			rank = 0;
+		else if (uz < 1.0 + Math.pow(0.5, theta))
+			rank = 1;
+		else
+			rank = Math.min(items - 1, (long) (items * Math.pow(eta * u - eta + 1, alpha)));
+
+		return scrambled ? scramble(rank) : rank;
+	}
+
+	/**
+	 * @return the item of a popularity rank, 0 being the most popular.
+	 */
+	public long getItem(long rank) {
+		return scrambled ? scramble(rank) : rank;
+	}
+
+	public long getItems() {
+		return items;
+	}
+
+	private long scramble(long rank) {
+		// FNV-1a over the bytes of the rank
+		long hash = 0xCBF29CE484222325L;
+
+		for (int i = 0; i < 8; i++) {
+			hash ^= (rank >>> (i * 8)) & 0xFF;
+			hash *= 0x100000001B3L;
+		}
+
+		return (hash & Long.MAX_VALUE) % items;
+	}
+
+	private static double zeta(long n, double theta) {
+		double sum = 0;
+
+		for (long i = 1; i <= n; i++) {
+			sum += 1 / Math.pow(i, theta);
+		}
+
+		return sum;
+	}
+}
@@ -17,11 +17,22 @@
  */
 package com.earnstone.index;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import junit.framework.Assert;
 import me.prettyprint.cassandra.model.BasicColumnFamilyDefinition;
+import me.prettyprint.cassandra.serializers.LongSerializer;
 import me.prettyprint.cassandra.service.ThriftCfDef;
 import me.prettyprint.cassandra.testutils.EmbeddedServerHelper;
 import me.prettyprint.hector.api.Cluster;
@@ -29,12 +40,19 @@ import me.prettyprint.hector.api.Keyspace;
 import me.prettyprint.hector.api.ddl.ColumnFamilyDefinition;
 import me.prettyprint.hector.api.ddl.ComparatorType;
 import me.prettyprint.hector.api.ddl.KeyspaceDefinition;
+import me.prettyprint.hector.api.exceptions.HTimedOutException;
+import me.prettyprint.hector.api.exceptions.HectorException;
 import me.prettyprint.hector.api.factory.HFactory;
 
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.earnstone.index.store.HectorIndexStore;
+import com.earnstone.index.store.IndexColumn;
+import com.earnstone.index.store.IndexMutation;
+import com.earnstone.index.store.MemoryIndexStore;
+
 public class ShardedLongIndexTest {
 
 	private static EmbeddedServerHelper embedded;
@@ -406,4 +424,784 @@ public class ShardedLongIndexTest {
 		Assert.assertEquals(99l, (long)list8.get(0).getIndex());
 		Assert.assertEquals(80l, (long)list8.get(19).getIndex());
 	}
+	
+	@Test
+	public void shardsSnapshot() throws Exception {
+		File file = File.createTempFile("shardsSnapshot", ".shards");
+		file.delete();
+		file.deleteOnExit();
+
+		ShardedLongIndex index = new ShardedLongIndex(cluster, keyspace, COLFAM, "shardsSnapshot", file);
+		Assert.assertEquals(0, index.getShardBoundries().size());
+		
+		index.initializeShardBoundries(Arrays.asList(20l, 40l, 60l));
+		Assert.assertTrue(file.exists());
+		Assert.assertEquals(Arrays.asList(20l, 40l, 60l), index.getDataListForBytes(index.snapshot.load()));
+
+		ShardedLongIndex cached = new ShardedLongIndex(cluster, keyspace, COLFAM, "shardsSnapshot", file);
+		Assert.assertEquals(Arrays.asList(20l, 40l, 60l), cached.getShardBoundries());
+		
+		File corrupt = File.createTempFile("shardsSnapshotCorrupt", ".shards");
+		corrupt.deleteOnExit();
+		
+		ShardedLongIndex reloaded = new ShardedLongIndex(cluster, keyspace, COLFAM, "shardsSnapshot", corrupt);
+		Assert.assertEquals(Arrays.asList(20l, 40l, 60l), reloaded.getShardBoundries());
+		Assert.assertEquals(Arrays.asList(20l, 40l, 60l), reloaded.getDataListForBytes(reloaded.snapshot.load()));
+
+		// an empty snapshot must not hide boundaries published by another node
+		File stale = File.createTempFile("shardsSnapshotStale", ".shards");
+		stale.delete();
+		stale.deleteOnExit();
+
+		MemoryIndexStore<Long> store = new MemoryIndexStore<Long>();
+		ShardedLongIndex first = new ShardedLongIndex(store, "shardsSnapshotStale", stale);
+		Assert.assertEquals(0, first.snapshot.load().length);
+		Assert.assertTrue(new ShardedLongIndex(store, "shardsSnapshotStale").initializeShardBoundries(Arrays.asList(10l, 20l, 30l)));
+
+		ShardedLongIndex second = new ShardedLongIndex(store, "shardsSnapshotStale", stale);
+		Assert.assertEquals(Arrays.asList(10l, 20l, 30l), second.getShardBoundries());
+		Assert.assertFalse(second.initializeShardBoundries(Arrays.asList(5l, 15l)));
+
+		Assert.assertEquals(0, first.getShardBoundries().size());
+		Assert.assertFalse(first.initializeShardBoundries(Arrays.asList(5l, 15l)));
+		Assert.assertEquals(Arrays.asList(10l, 20l, 30l), first.getShardBoundries());
+		Assert.assertEquals(Arrays.asList(10l, 20l, 30l), new ShardedLongIndex(store, "shardsSnapshotStale").getShardBoundries());
+	}
+	
+	@Test
+	public void shardStatistics() {
+		ShardedLongIndex index = new ShardedLongIndex(cluster, keyspace, COLFAM, "shardStatistics");
+		Assert.assertNull(index.getStatistics());
+		index.initializeShardBoundries(Arrays.asList(20l, 40l, 60l, 80l, 100l));
+		
+		for (long i = 0; i < 100; i++) {
+			index.addToIndex(i, i);
+		}
+		
+		for (long i = 0; i < 5; i++) {
+			index.addToIndex(5l, 1000 + i);
+		}
+		
+		index.addToIndex(1000l, 1000l);
+		
+		ShardStatistics<Long> stats = index.collectStatistics(100);
+		Assert.assertEquals(101, stats.getTotalCount());
+		Assert.assertEquals(1, stats.getOverflowShardCount());
+		Assert.assertEquals(21, (long)stats.getShardCounts().get(20l));
+		Assert.assertEquals(20, (long)stats.getShardCounts().get(40l));
+		Assert.assertEquals(20l, (long)stats.getLargestShards(1).get(0).getKey());
+		Assert.assertEquals(5l, (long)stats.getHeaviestKeys(1).get(0).getKey());
+		Assert.assertEquals(6, stats.getHeaviestKeys(1).get(0).getCount());
+		
+		ShardStatistics<Long> saved = index.getStatistics();
+		Assert.assertEquals(stats.getCollectedAt(), saved.getCollectedAt());
+		Assert.assertEquals(stats.getShardCounts(), saved.getShardCounts());
+		Assert.assertEquals(stats.getKeyValueCounts(), saved.getKeyValueCounts());
+		Assert.assertTrue(saved.getSkewReport(3).contains("skew="));
+	}
+	
+	@Test
+	public void rebalanceShards() {
+		ShardedLongIndex index = new ShardedLongIndex(cluster, keyspace, COLFAM, "rebalanceShards");
+		index.initializeShardBoundries(Arrays.asList(20l, 40l, 60l, 80l, 100l));
+		
+		for (long i = 0; i < 100; i++) {
+			index.addToIndex(i, i);
+		}
+		
+		index.addToIndex(5l, 1005l);
+		
+		for (long i = 20; i < 80; i++) {
+			index.removeAllValuesAtIndex(i);
+		}
+		
+		ShardRebalancer<Long> rebalancer = new ShardRebalancer<Long>(index);
+		rebalancer.setPageSize(7);
+		Assert.assertEquals(3, rebalancer.rebalance(10, 50));
+		Assert.assertEquals(Arrays.asList(20l, 100l), index.getShardBoundries());
+		
+		ShardedLongIndex reloaded = new ShardedLongIndex(cluster, keyspace, COLFAM, "rebalanceShards");
+		Assert.assertEquals(Arrays.asList(20l, 100l), reloaded.getShardBoundries());
+		
+		Assert.assertEquals(2, reloaded.getValuesForIndex(5l, 32).size());
+		
+		for (long i = 80; i < 100; i++) {
+			List<Long> values = reloaded.getValuesForIndex(i, 32);
+			Assert.assertEquals(1, values.size());
+			Assert.assertEquals(i, values.get(0).longValue());
+		}
+		
+		List<IndexItem<Long>> list = reloaded.getValueRangesForIndex(0l, false, 40, 10);
+		Assert.assertEquals(40, list.size());
+		Assert.assertEquals(19l, (long)list.get(19).getIndex());
+		Assert.assertEquals(80l, (long)list.get(20).getIndex());
+		
+		Assert.assertEquals(0, rebalancer.rebalance(10, 50));
+
+		try {
+			rebalancer.setPageSize(1);
+			Assert.fail();
+		}
+		catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public void rebalanceSparseShards() {
+		ShardedLongIndex index = new ShardedLongIndex(new MemoryIndexStore<Long>(), "rebalanceSparseShards");
+		index.initializeShardBoundries(Arrays.asList(20l, 40l, 60l));
+
+		for (long i = 0; i < 80; i += 10) {
+			index.addToIndex(i, i);
+		}
+
+		index.addToIndex(30l, 31l);
+		ShardStatistics<Long> stats = index.collectStatistics(100);
+		Assert.assertEquals(1, stats.getKeyValueCounts().size());
+
+		Assert.assertEquals(2, new ShardRebalancer<Long>(index).rebalance(100, 100));
+		Assert.assertEquals(Arrays.asList(60l), index.getShardBoundries());
+		Assert.assertFalse(index.initializeShardBoundries(Arrays.asList(10l, 50l)));
+		Assert.assertEquals(stats.getCollectedAt(), index.getStatistics().getCollectedAt());
+		Assert.assertEquals(1, index.getStatistics().getKeyValueCounts().size());
+
+		for (long i = 0; i < 80; i += 10) {
+			Assert.assertEquals(i == 30 ? 2 : 1, index.getValuesForIndex(i, 32).size());
+		}
+	}
+	
+	@Test
+	public void scanAndExportIndex() throws Exception {
+		ShardedLongIndex index = new ShardedLongIndex(cluster, keyspace, COLFAM, "scanAndExportIndex");
+		index.initializeShardBoundries(Arrays.asList(20l, 40l, 60l, 80l, 100l));
+		
+		for (long i = 0; i < 100; i++) {
+			index.addToIndex(i, i);
+		}
+		
+		index.addToIndex(7l, 1007l);
+		index.addToIndex(1000l, 1000l);
+		
+		ShardScanner<Long> scanner = new ShardScanner<Long>(index);
+		scanner.setPageSize(6);
+		scanner.setConcurrency(3);
+		
+		final List<Long> keys = new ArrayList<Long>();
+		IndexItemHandler<Long> collector = new IndexItemHandler<Long>() {
+			public void handle(IndexItem<Long> item) {
+				keys.add(item.getIndex());
+			}
+		};
+		
+		Assert.assertEquals(101, scanner.scan(collector, true));
+		Assert.assertEquals(101, keys.size());
+		for (int i = 0; i < 100; i++) {
+			Assert.assertEquals(i, keys.get(i).longValue());
+		}
+		Assert.assertEquals(1000l, keys.get(100).longValue());
+		
+		keys.clear();
+		Assert.assertEquals(101, scanner.scan(collector, false));
+		Assert.assertEquals(101, keys.size());
+		
+		File file = File.createTempFile("scanAndExportIndex", ".export");
+		file.deleteOnExit();
+		
+		IndexExporter<Long> exporter = new IndexExporter<Long>(index);
+		Assert.assertEquals(101, exporter.export(file, true));
+		
+		final List<IndexItem<Long>> items = new ArrayList<IndexItem<Long>>();
+		Assert.assertEquals(101, exporter.read(file, new IndexItemHandler<Long>() {
+			public void handle(IndexItem<Long> item) {
+				items.add(item);
+			}
+		}));
+		Assert.assertEquals(7l, (long)items.get(7).getIndex());
+		Assert.assertEquals(Arrays.asList(7l, 1007l), items.get(7).getValues());
+		Assert.assertEquals(Arrays.asList(1000l), items.get(100).getValues());
+	}
+	
+	@Test
+	public void reverseMapping() {
+		ShardedLongIndex index = new ShardedLongIndex(cluster, keyspace, COLFAM, "reverseMapping");
+		index.initializeShardBoundries(Arrays.asList(20l, 40l, 60l));
+		
+		try {
+			index.getIndexesForValue(1l);
+			Assert.fail();
+		}
+		catch (IllegalStateException e) {
+		}
+		
+		index.setReverseMappingEnabled(true);
+		
+		for (long i = 0; i < 100; i++) {
+			index.addToIndex(i, i % 10);
+		}
+		
+		index.addToIndex(5l, 7l);
+		index.addToIndex(50l, 7l);
+		
+		Assert.assertEquals(Arrays.asList(3l, 13l, 23l, 33l, 43l, 53l, 63l, 73l, 83l, 93l), index.getIndexesForValue(3l));
+		Assert.assertEquals(12, index.getIndexesForValue(7l).size());
+		
+		index.removeValueAtIndex(3l, 3l);
+		index.removeAllValuesAtIndex(13l);
+		index.overwriteIndex(23l, 8l);
+		Assert.assertEquals(Arrays.asList(33l, 43l, 53l, 63l, 73l, 83l, 93l), index.getIndexesForValue(3l));
+		Assert.assertTrue(index.getIndexesForValue(8l).contains(23l));
+		
+		index.removeValueEverywhere(7l);
+		Assert.assertEquals(0, index.getIndexesForValue(7l).size());
+		Assert.assertEquals(Arrays.asList(5l), index.getValuesForIndex(5l, 32));
+		Assert.assertEquals(Arrays.asList(0l), index.getValuesForIndex(50l, 32));
+		Assert.assertEquals(0, index.getValuesForIndex(17l, 32).size());
+		Assert.assertEquals(0, index.getValuesForIndex(97l, 32).size());
+		Assert.assertEquals(Arrays.asList(6l), index.getValuesForIndex(96l, 32));
+	}
+
+	@Test
+	public void indexGroup() {
+		ShardedLongIndex byAge = new ShardedLongIndex(cluster, keyspace, COLFAM, "indexGroupAge");
+		ShardedLongIndex byZip = new ShardedLongIndex(cluster, keyspace, COLFAM, "indexGroupZip");
+		byAge.initializeShardBoundries(Arrays.asList(20l, 40l, 60l));
+		byZip.setReverseMappingEnabled(true);
+		IndexGroup<Long> group = new IndexGroup<Long>(Arrays.asList(byAge, byZip));
+
+		for (long id = 0; id < 20; id++) {
+			group.apply(id, new IndexGroup.Change<Long>().add(byAge, 30 + id % 3).add(byZip, 90000 + id));
+		}
+
+		Assert.assertEquals(7, byAge.getValuesForIndex(30l, 32).size());
+		Assert.assertEquals(Arrays.asList(5l), byZip.getValuesForIndex(90005l, 32));
+		Assert.assertEquals(Arrays.asList(90005l), byZip.getIndexesForValue(5l));
+
+		group.apply(5l, new IndexGroup.Change<Long>().move(byAge, 32l, 70l).move(byZip, 90005l, 90006l).remove(byZip, 90007l));
+		Assert.assertEquals(5, byAge.getValuesForIndex(32l, 32).size());
+		Assert.assertEquals(Arrays.asList(5l), byAge.getValuesForIndex(70l, 32));
+		Assert.assertEquals(0, byZip.getValuesForIndex(90005l, 32).size());
+		Assert.assertEquals(Arrays.asList(5l, 6l), byZip.getValuesForIndex(90006l, 32));
+		Assert.assertEquals(Arrays.asList(7l), byZip.getValuesForIndex(90007l, 32));
+		Assert.assertEquals(Arrays.asList(90006l), byZip.getIndexesForValue(5l));
+
+		try {
+			new IndexGroup<Long>(Arrays.asList(byAge, new ShardedLongIndex(new MemoryIndexStore<Long>(), "indexGroupMemory")));
+			Assert.fail();
+		}
+		catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public void aggregateQueries() {
+		ShardedLongIndex index = new ShardedLongIndex(cluster, keyspace, COLFAM, "aggregateQueries");
+		index.initializeShardBoundries(Arrays.asList(20l, 40l, 60l, 80l));
+		IndexAggregator<Long> aggregator = new IndexAggregator<Long>(index);
+
+		for (long i = 0; i < 100; i++) {
+			index.addToIndex(i, i);
+		}
+
+		for (long i = 0; i < 30; i++) {
+			index.addToIndex(50l, 1000 + i);
+			index.addToIndex(i % 5, 2000 + i);
+		}
+
+		Assert.assertEquals(100, aggregator.countRange(null, null));
+		Assert.assertEquals(31, aggregator.countRange(10l, 40l));
+		Assert.assertEquals(1, aggregator.countRange(45l, 45l));
+		Assert.assertEquals(5, aggregator.countRange(95l, null));
+		Assert.assertEquals(0, aggregator.countRange(200l, null));
+		Assert.assertEquals(31, aggregator.countValues(50l));
+		Assert.assertEquals(7, aggregator.countValues(3l));
+		Assert.assertEquals(1, aggregator.countValues(70l));
+		Assert.assertEquals(0, aggregator.countValues(700l));
+		Assert.assertEquals(10l, (long) aggregator.getFirstKey(10l, 40l));
+		Assert.assertEquals(99l, (long) aggregator.getLastKey(30l, null));
+		Assert.assertNull(aggregator.getFirstKey(100l, 200l));
+
+		List<ShardStatistics.Entry<Long>> top = aggregator.getTopKeys(3);
+		Assert.assertEquals(3, top.size());
+		Assert.assertEquals(50l, (long) top.get(0).getKey());
+		Assert.assertEquals(31, top.get(0).getCount());
+		Assert.assertEquals(7, top.get(1).getCount());
+
+		// statistics saved without key samples are collected again
+		index.saveStatistics(index.countShards(0));
+		Assert.assertEquals(3, aggregator.getTopKeys(3).size());
+		Assert.assertFalse(index.getStatistics().getKeyValueCounts().isEmpty());
+
+		ShardStatistics<Long> old = index.getStatistics();
+		old.setCollectedAt(System.currentTimeMillis() - 2 * aggregator.getMaxStatisticsAgeMillis());
+		index.saveStatistics(old);
+		Assert.assertEquals(50l, (long) aggregator.getTopKeys(1).get(0).getKey());
+		Assert.assertTrue(index.getStatistics().getCollectedAt() > old.getCollectedAt());
+
+		index.addToIndex(1000l, 1l);
+		Assert.assertEquals(60, aggregator.estimateRange(21l, 80l));
+		Assert.assertEquals(100, aggregator.estimateRange(null, null));
+		Assert.assertEquals(101, aggregator.countRange(null, null));
+		Assert.assertEquals(85, aggregator.estimateRange(15l, null));
+
+		try {
+			aggregator.countRange(10l, 5l);
+			Assert.fail();
+		}
+		catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public void offHeapShardBoundaries() {
+		List<Long> list = new ArrayList<Long>();
+		Random random = new Random(36);
+
+		for (int i = 0; i < 5000; i++) {
+			list.add(random.nextLong() % 100000);
+		}
+
+		HeapShardBoundaries<Long> heap = new HeapShardBoundaries<Long>(list);
+		OffHeapLongShardBoundaries offHeap = new OffHeapLongShardBoundaries(list);
+		Assert.assertEquals(heap.size(), offHeap.size());
+		Assert.assertEquals(heap.first(), offHeap.first());
+		Assert.assertEquals(heap.last(), offHeap.last());
+
+		for (long key = -100010; key <= 100010; key += 7) {
+			Assert.assertEquals(heap.ceiling(key), offHeap.ceiling(key));
+			Assert.assertEquals(heap.higher(key), offHeap.higher(key));
+			Assert.assertEquals(heap.lower(key), offHeap.lower(key));
+		}
+
+		MemoryIndexStore<Long> store = new MemoryIndexStore<Long>();
+		new ShardedLongIndex(store, "offHeapShardBoundaries").initializeShardBoundries(Arrays.asList(20l, 40l, 60l));
+
+		ShardedLongIndex index = new ShardedLongIndex(store, "offHeapShardBoundaries", null, true);
+		Assert.assertTrue(index.shards instanceof OffHeapLongShardBoundaries);
+
+		for (long i = 0; i < 100; i++) {
+			index.addToIndex(i, i);
+		}
+
+		Assert.assertEquals(Arrays.asList(20l, 40l, 60l), index.getShardBoundries());
+		Assert.assertEquals(4, index.getShardKeys().size());
+		Assert.assertEquals(26, index.getValueRangesForIndex(35l, false, 30, 20).size());
+		Assert.assertEquals(30, index.getValueRangesForIndex(35l, true, 30, 20).size());
+
+		index.reloadShardsCache();
+		Assert.assertTrue(index.shards instanceof OffHeapLongShardBoundaries);
+		Assert.assertEquals(Arrays.asList(59l), index.getValuesForIndex(59l, 32));
+		Assert.assertEquals(new OffHeapLongShardBoundaries(new byte[0]).first(), null);
+	}
+
+	@Test
+	public void verifyAndRepairIndex() {
+		MemoryIndexStore<Long> store = new MemoryIndexStore<Long>();
+		ShardedLongIndex index = new ShardedLongIndex(store, "verifyAndRepairIndex");
+		index.initializeShardBoundries(Arrays.asList(20l, 40l, 60l));
+
+		for (long i = 0; i < 100; i++) {
+			index.addToIndex(i, i);
+		}
+
+		index.addToIndex(8l, 108l);
+		byte[] shard20 = index.getShardKeyForBoundary(20l);
+		byte[] empty = index.getEmptyValue();
+
+		// marker without values, sub-shard written without the marker and a
+		// key left in the shard row before its boundary
+		store.mutate(Arrays.asList(IndexMutation.insert(shard20, 5l, empty), IndexMutation.<Long> deleteRow(index.getSubShardKeyForIndex(5l))));
+		store.mutate(Arrays.asList(IndexMutation.insert(index.getSubShardKeyForIndex(7l), 7l, index.getBytesForData(7l)),
+				IndexMutation.insert(index.getSubShardKeyForIndex(7l), 107l, index.getBytesForData(107l))));
+		store.mutate(Arrays.asList(IndexMutation.insert(shard20, 30l, index.getBytesForData(30l)), IndexMutation.insert(shard20, 130l, index.getBytesForData(130l))));
+
+		IndexVerifier<Long> verifier = new IndexVerifier<Long>(index);
+		verifier.setPageSize(10);
+		verifier.setMaxPagesPerSecond(100);
+		IndexVerifier.Report<Long> report = verifier.verify(false);
+
+		Assert.assertEquals(102, report.getKeysChecked());
+		Assert.assertEquals(Arrays.asList(5l), report.getDanglingMarkers());
+		Assert.assertEquals(Arrays.asList(7l), report.getOrphanSubShards());
+		Assert.assertEquals(2, report.getMisroutedKeys().size());
+		Assert.assertEquals(0, report.getRepaired());
+		Assert.assertEquals(Arrays.asList(7l), index.getValuesForIndex(7l, 32));
+
+		report = verifier.verify(true);
+		Assert.assertEquals(4, report.getProblemCount());
+		Assert.assertTrue(report.getRepaired() > 0);
+		Assert.assertEquals(0, index.getValuesForIndex(5l, 32).size());
+		Assert.assertEquals(Arrays.asList(7l, 107l), index.getValuesForIndex(7l, 32));
+		Assert.assertEquals(Arrays.asList(8l, 108l), index.getValuesForIndex(8l, 32));
+		Assert.assertEquals(Arrays.asList(130l), index.getValuesForIndex(130l, 32));
+		Assert.assertNull(store.get(shard20, 30l));
+
+		report = verifier.verify(false);
+		Assert.assertEquals(0, report.getProblemCount());
+		Assert.assertEquals(100, report.getKeysChecked());
+
+		// an overwritten multi-value key must not be restored by a repair
+		index.addToIndex(9l, 109l);
+		index.addToIndex(9l, 209l);
+		index.overwriteIndex(9l, 109l);
+		report = verifier.verify(true);
+		Assert.assertEquals(0, report.getProblemCount());
+		Assert.assertEquals(Arrays.asList(109l), index.getValuesForIndex(9l, 32));
+		Assert.assertEquals(0, store.count(index.getSubShardKeyForIndex(9l), null, null));
+
+		// a key promoted to multi-value after its marker was found dangling
+		// keeps the marker
+		final byte[] racedKey = "verifyMarkerRace::".getBytes();
+		MemoryIndexStore<Long> racy = new MemoryIndexStore<Long>() {
+			private boolean raced;
+
+			public int count(byte[] rowKey, Long start, Long finish) {
+				int count = super.count(rowKey, start, finish);
+
+				if (!raced && Arrays.equals(racedKey, Arrays.copyOf(rowKey, racedKey.length))) {
+					raced = true;
+					mutate(Arrays.asList(IndexMutation.insert(rowKey, 11l, getBytes(11l)), IndexMutation.insert(rowKey, 12l, getBytes(12l))));
+				}
+
+				return count;
+			}
+
+			private byte[] getBytes(long value) {
+				return LongSerializer.get().toBytes(value);
+			}
+		};
+
+		ShardedLongIndex raced = new ShardedLongIndex(racy, "verifyMarkerRace");
+		raced.initializeShardBoundries(Arrays.asList(20l));
+		racy.mutate(Arrays.asList(IndexMutation.insert(raced.getShardKeyForIndex(5l), 5l, raced.getEmptyValue())));
+
+		report = new IndexVerifier<Long>(raced).verify(true);
+		Assert.assertEquals(Arrays.asList(5l), report.getDanglingMarkers());
+		Assert.assertEquals(0, report.getRepaired());
+		Assert.assertEquals(Arrays.asList(11l, 12l), raced.getValuesForIndex(5l, 32));
+	}
+
+	@Test
+	public void fanOutReads() throws Exception {
+		final AtomicInteger inFlight = new AtomicInteger();
+		final AtomicInteger maxInFlight = new AtomicInteger();
+		final AtomicInteger shardInFlight = new AtomicInteger();
+		final AtomicInteger maxShardInFlight = new AtomicInteger();
+		final AtomicReference<CountDownLatch> gate = new AtomicReference<CountDownLatch>();
+
+		// sub-shard reads wait at the gate until as many have arrived as it
+		// counts, so they only get through when read in parallel
+		MemoryIndexStore<Long> store = new MemoryIndexStore<Long>() {
+			public List<IndexColumn<Long>> slice(byte[] rowKey, Long start, Long finish, boolean reversed, int limit) {
+				boolean subShard = new String(rowKey).startsWith("fanOutReads::");
+				AtomicInteger counter = subShard ? inFlight : shardInFlight;
+				AtomicInteger max = subShard ? maxInFlight : maxShardInFlight;
+				int current = counter.incrementAndGet();
+
+				synchronized (max) {
+					max.set(Math.max(max.get(), current));
+				}
+
+				try {
+					CountDownLatch latch = gate.get();
+
+					if (subShard && latch != null) {
+						latch.countDown();
+						latch.await(5, TimeUnit.SECONDS);
+					}
+
+					return super.slice(rowKey, start, finish, reversed, limit);
+				}
+				catch (InterruptedException e) {
+					throw new HectorException(e);
+				}
+				finally {
+					counter.decrementAndGet();
+				}
+			}
+		};
+
+		ShardedLongIndex index = new ShardedLongIndex(store, "fanOutReads");
+		index.initializeShardBoundries(Arrays.asList(20l, 40l, 60l));
+
+		for (long i = 0; i < 100; i++) {
+			index.addToIndex(i, i);
+			index.addToIndex(i, i + 1000);
+		}
+
+		gate.set(new CountDownLatch(10));
+		List<IndexItem<Long>> list = index.getValueRangesForIndex(15l, false, 10, 10);
+		Assert.assertEquals(10, list.size());
+		Assert.assertEquals(Arrays.asList(24l, 1024l), list.get(9).getValues());
+		Assert.assertEquals(10, maxInFlight.get());
+		Assert.assertEquals(1, maxShardInFlight.get());
+		Assert.assertEquals(index.getFanOutExecutor().getConcurrency(), index.getFanOutExecutor().getAvailablePermits());
+		gate.set(null);
+
+		Map<Long, List<Long>> values = index.getValuesForIndexes(Arrays.asList(5l, 55l, 95l, 500l), 32);
+		Assert.assertEquals(Arrays.asList(5l, 55l, 95l, 500l), new ArrayList<Long>(values.keySet()));
+		Assert.assertEquals(Arrays.asList(55l, 1055l), values.get(55l));
+		Assert.assertEquals(0, values.get(500l).size());
+
+		// two permits plus the caller
+		maxInFlight.set(0);
+		index.setFanOutExecutor(new FanOutExecutor(Executors.newCachedThreadPool(), 2, 0));
+		Assert.assertEquals(20, index.getValueRangesForIndex(0l, false, 20, 10).size());
+		Assert.assertTrue(maxInFlight.get() <= 3);
+
+		index.setFanOutExecutor(new FanOutExecutor(Executors.newCachedThreadPool(), 8, 0));
+		ShardScanner<Long> scanner = new ShardScanner<Long>(index);
+		scanner.setConcurrency(2);
+		maxShardInFlight.set(0);
+
+		final List<Long> keys = new ArrayList<Long>();
+		Assert.assertEquals(100, scanner.scan(new IndexItemHandler<Long>() {
+			public void handle(IndexItem<Long> item) {
+				keys.add(item.getIndex());
+			}
+		}, true));
+
+		for (int i = 0; i < 100; i++) {
+			Assert.assertEquals(i, keys.get(i).longValue());
+		}
+
+		Assert.assertTrue(maxShardInFlight.get() <= 2);
+		maxShardInFlight.set(0);
+		Assert.assertEquals(100, scanner.scan(new IndexItemHandler<Long>() {
+			public void handle(IndexItem<Long> item) {
+			}
+		}, false));
+		Assert.assertTrue(maxShardInFlight.get() <= 2);
+
+		// the sub-shard reads never get through the gate, so the deadline
+		// passes while waiting for them
+		index.setFanOutExecutor(new FanOutExecutor(Executors.newCachedThreadPool(), 4, 100));
+		CountDownLatch closed = new CountDownLatch(100);
+		gate.set(closed);
+
+		try {
+			index.getValueRangesForIndex(0l, false, 3, 10);
+			Assert.fail();
+		}
+		catch (HTimedOutException e) {
+		}
+		finally {
+			gate.set(null);
+
+			while (closed.getCount() > 0) {
+				closed.countDown();
+			}
+		}
+
+		// tasks cancelled before they started give their permits back
+		final CountDownLatch stuck = new CountDownLatch(1);
+		FanOutExecutor executor = new FanOutExecutor(Executors.newSingleThreadExecutor(), 4, 100);
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+
+		for (int i = 0; i < 3; i++) {
+			tasks.add(new Callable<Object>() {
+				public Object call() throws Exception {
+					return stuck.await(5, TimeUnit.SECONDS);
+				}
+			});
+		}
+
+		try {
+			executor.invokeAll(tasks);
+			Assert.fail();
+		}
+		catch (HTimedOutException e) {
+		}
+
+		for (int i = 0; i < 500 && executor.getAvailablePermits() < 4; i++) {
+			Thread.sleep(10);
+		}
+
+		Assert.assertEquals(4, executor.getAvailablePermits());
+	}
+
+	@Test
+	public void changeFeed() throws Exception {
+		MemoryIndexStore<Long> store = new MemoryIndexStore<Long>();
+		ShardedLongIndex index = new ShardedLongIndex(store, "changeFeed");
+		index.initializeShardBoundries(Arrays.asList(20l, 40l));
+		final List<IndexChangeEvent<Long>> events = new ArrayList<IndexChangeEvent<Long>>();
+
+		IndexChangeListener<Long> collector = new IndexChangeListener<Long>() {
+			public void indexChanged(IndexChangeEvent<Long> event) {
+				events.add(event);
+			}
+		};
+
+		IndexChangeLog changeLog = new IndexChangeLog(index, 50);
+		changeLog.setReadLagMillis(0);
+		index.addChangeListener(collector);
+		index.addChangeListener(changeLog);
+		IndexChangeLog.Checkpoint checkpoint = changeLog.getCheckpoint(System.currentTimeMillis());
+
+		index.addToIndex(5l, 1l);
+		index.addToIndex(5l, 2l);
+		index.removeValueAtIndex(5l, 3l);
+		index.removeValueAtIndex(5l, 2l);
+		Thread.sleep(60);
+		index.addToIndex(30l, 1l);
+		index.overwriteIndex(50l, 3l);
+		index.removeAllValuesAtIndex(5l);
+		IndexGroup<Long> group = new IndexGroup<Long>(Arrays.asList(index));
+		group.apply(7l, new IndexGroup.Change<Long>().add(index, 35l));
+		group.apply(8l, new IndexGroup.Change<Long>().add(index, 35l));
+		group.apply(9l, new IndexGroup.Change<Long>().remove(index, 35l));
+
+		// removing 3 from 5 and 9 from 35, neither ever held, are not events
+		Assert.assertEquals(8, events.size());
+		Assert.assertEquals(IndexChangeEvent.Type.REMOVE, events.get(2).getType());
+		Assert.assertEquals(2l, (long) events.get(2).getValue());
+		Assert.assertEquals(3, events.get(2).getSequence());
+		Assert.assertEquals(20l, (long) events.get(2).getBoundary());
+		Assert.assertEquals(1, events.get(3).getSequence());
+		Assert.assertNull(events.get(4).getBoundary());
+		Assert.assertEquals(IndexChangeEvent.Type.REMOVE_ALL, events.get(5).getType());
+		Assert.assertEquals(4, events.get(5).getSequence());
+		Assert.assertEquals(2, events.get(6).getSequence());
+		Assert.assertEquals(3, events.get(7).getSequence());
+
+		final List<IndexChangeEvent<Long>> tailed = new ArrayList<IndexChangeEvent<Long>>();
+		IndexChangeListener<Long> tailer = new IndexChangeListener<Long>() {
+			public void indexChanged(IndexChangeEvent<Long> event) {
+				tailed.add(event);
+			}
+		};
+
+		Thread.sleep(60);
+
+		for (int i = 0; i < 10; i++) {
+			checkpoint = changeLog.tail(checkpoint, 2, tailer);
+		}
+
+		Assert.assertEquals(8, tailed.size());
+
+		for (int i = 0; i < tailed.size(); i++) {
+			Assert.assertEquals(events.get(i).getType(), tailed.get(i).getType());
+			Assert.assertEquals(events.get(i).getIndex(), tailed.get(i).getIndex());
+			Assert.assertEquals(events.get(i).getValue(), tailed.get(i).getValue());
+			Assert.assertEquals(events.get(i).getSequence(), tailed.get(i).getSequence());
+			Assert.assertTrue(i == 0 || tailed.get(i).getEventId() > tailed.get(i - 1).getEventId());
+		}
+
+		index.addToIndex(60l, 60l);
+		Thread.sleep(10);
+		checkpoint = changeLog.tail(checkpoint, 10, tailer);
+		Assert.assertEquals(9, tailed.size());
+		Assert.assertTrue(tailed.get(8).getEventId() > 0);
+		Assert.assertEquals(tailed.get(8).getTimestamp() / 50, changeLog.getBucket(tailed.get(8).getEventId()));
+		changeLog.tail(checkpoint, 10, tailer);
+		Assert.assertEquals(9, tailed.size());
+
+		index.removeChangeListener(changeLog);
+		index.removeChangeListener(collector);
+		index.addToIndex(61l, 61l);
+		Assert.assertEquals(9, events.size());
+
+		// a listener stuck on one write does not hold up the next one
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger finished = new AtomicInteger();
+		final ShardedLongIndex blocked = index;
+
+		index.addChangeListener(new IndexChangeListener<Long>() {
+			public void indexChanged(IndexChangeEvent<Long> event) {
+				if (event.getIndex() == 62l) {
+					entered.countDown();
+
+					try {
+						release.await(5, TimeUnit.SECONDS);
+					}
+					catch (InterruptedException e) {
+					}
+
+					finished.incrementAndGet();
+				}
+			}
+		});
+
+		Thread writer = new Thread() {
+			public void run() {
+				blocked.addToIndex(62l, 62l);
+			}
+		};
+
+		writer.start();
+		Assert.assertTrue(entered.await(5, TimeUnit.SECONDS));
+		index.addToIndex(63l, 63l);
+		Assert.assertEquals(0, finished.get());
+		release.countDown();
+		writer.join();
+		Assert.assertEquals(1, finished.get());
+
+		// concurrent writes to one shard are numbered in the order applied
+		final List<Long> applied = new ArrayList<Long>();
+		MemoryIndexStore<Long> recording = new MemoryIndexStore<Long>() {
+			public void mutate(List<IndexMutation<Long>> mutations) {
+				synchronized (applied) {
+					super.mutate(mutations);
+					applied.add(mutations.get(0).getName());
+				}
+
+				Thread.yield();
+			}
+		};
+
+		final ShardedLongIndex ordered = new ShardedLongIndex(recording, "changeFeedOrder");
+		ordered.initializeShardBoundries(Arrays.asList(20l));
+		final Long[] numbered = new Long[400];
+
+		ordered.addChangeListener(new IndexChangeListener<Long>() {
+			public void indexChanged(IndexChangeEvent<Long> event) {
+				numbered[(int) event.getSequence() - 1] = event.getIndex();
+			}
+		});
+
+		Thread[] writers = new Thread[4];
+		applied.clear();
+
+		for (int i = 0; i < writers.length; i++) {
+			final long first = -i * 100;
+			writers[i] = new Thread() {
+				public void run() {
+					for (long key = first; key > first - 100; key--) {
+						ordered.addToIndex(key, key);
+					}
+				}
+			};
+			writers[i].start();
+		}
+
+		for (Thread thread : writers) {
+			thread.join();
+		}
+
+		Assert.assertEquals(applied, Arrays.asList(numbered));
+	}
+
+	@Test
+	public void hectorStoreBatchClock() {
+		HectorIndexStore<Long> store = new HectorIndexStore<Long>(keyspace, COLFAM, LongSerializer.get());
+		byte[] row = "hectorStoreBatchClock".getBytes();
+
+		store.mutate(Arrays.asList(IndexMutation.insert(row, 1l, new byte[] { 1 }), IndexMutation.insert(row, 2l, new byte[] { 2 })));
+		store.mutate(Arrays.asList(IndexMutation.delete(row, 1l), IndexMutation.<Long> deleteRow(row), IndexMutation.insert(row, 1l, new byte[] { 3 })));
+		Assert.assertEquals(1, store.count(row, null, null));
+		Assert.assertEquals(3, store.get(row, 1l)[0]);
+
+		try {
+			store.mutate(Arrays.asList(IndexMutation.insert(row, 2l, new byte[] { 2 }), IndexMutation.delete(row, 2l)));
+			Assert.fail();
+		}
+		catch (IllegalArgumentException e) {
+		}
+
+		// the next batch gets a newer clock and is not shadowed by the last one
+		store.mutate(Arrays.asList(IndexMutation.insert(row, 4l, new byte[] { 4 })));
+		store.mutate(Arrays.asList(IndexMutation.<Long> deleteRow(row)));
+		Assert.assertEquals(0, store.count(row, null, null));
+	}
 }
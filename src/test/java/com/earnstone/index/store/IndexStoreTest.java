@@ -0,0 +1,269 @@
+/*
+ * Eindex: Earnstone Sharded Column Index for Cassandra
+ * 
+ * Copyright 2011 Corey Hulen, Earnstone Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+package com.earnstone.index.store;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+import me.prettyprint.cassandra.serializers.LongSerializer;
+import me.prettyprint.hector.api.exceptions.HectorException;
+
+import org.junit.Test;
+
+import com.earnstone.index.IndexItem;
+import com.earnstone.index.ShardedLongIndex;
+
+public class IndexStoreTest {
+
+	private static byte[] ROW = "row".getBytes();
+
+	@Test
+	public void memorySlices() {
+		MemoryIndexStore<Long> store = new MemoryIndexStore<Long>();
+
+		for (long i = 0; i < 10; i++) {
+			store.mutate(Arrays.asList(IndexMutation.insert(ROW, i, LongSerializer.get().toBytes(i))));
+		}
+
+		Assert.assertEquals(5, store.slice(ROW, null, null, false, 5).size());
+		Assert.assertEquals(3l, (long)store.slice(ROW, 3l, null, false, 5).get(0).getName());
+		Assert.assertEquals(4, store.slice(ROW, 3l, 6l, false, 10).size());
+		
+		List<IndexColumn<Long>> reversed = store.slice(ROW, 6l, 3l, true, 10);
+		Assert.assertEquals(4, reversed.size());
+		Assert.assertEquals(6l, (long)reversed.get(0).getName());
+		Assert.assertEquals(3l, (long)reversed.get(3).getName());
+		Assert.assertEquals(9l, (long)store.slice(ROW, null, null, true, 1).get(0).getName());
+		
+		Assert.assertEquals(10, store.count(ROW, null, null));
+		Assert.assertEquals(3, store.count(ROW, 7l, null));
+		Assert.assertEquals(0, store.count("missing".getBytes(), null, null));
+		
+		List<List<IndexColumn<Long>>> rows = store.multiget(Arrays.asList("missing".getBytes(), ROW), Arrays.asList(2l, 20l, 4l));
+		Assert.assertEquals(0, rows.get(0).size());
+		Assert.assertEquals(2, rows.get(1).size());
+		
+		store.mutate(Arrays.asList(IndexMutation.delete(ROW, 2l), IndexMutation.<Long> deleteRow(ROW), IndexMutation.insert(ROW, 1l, new byte[0])));
+		Assert.assertNull(store.get(ROW, 2l));
+		Assert.assertEquals(1, store.count(ROW, null, null));
+	}
+
+	@Test
+	public void shardedIndexInMemory() {
+		ShardedLongIndex index = new ShardedLongIndex(new MemoryIndexStore<Long>(), "shardedIndexInMemory");
+		index.initializeShardBoundries(Arrays.asList(20l, 40l, 60l, 80l, 100l));
+
+		for (long i = 0; i < 100; i++) {
+			index.addToIndex(i, i);
+			index.addToIndex(i, i + 1);
+		}
+
+		index.addToIndex(1000l, 1000l);
+		
+		Assert.assertEquals(Arrays.asList(5l, 6l), index.getValuesForIndex(5l, 32));
+		
+		List<IndexItem<Long>> list = index.getValueRangesForIndex(59l, false, 20, 20);
+		Assert.assertEquals(20, list.size());
+		Assert.assertEquals(59l, (long)list.get(0).getIndex());
+		Assert.assertEquals(78l, (long)list.get(19).getIndex());
+		
+		list = index.getValueRangesForIndex(2000l, true, 20, 20);
+		Assert.assertEquals(20, list.size());
+		Assert.assertEquals(1000l, (long)list.get(0).getIndex());
+		Assert.assertEquals(81l, (long)list.get(19).getIndex());
+		
+		index.removeAllValuesAtIndex(5l);
+		Assert.assertEquals(0, index.getValuesForIndex(5l, 32).size());
+	}
+
+	@Test
+	public void mappedFileStore() throws Exception {
+		File file = File.createTempFile("mappedFileStore", ".log");
+		file.delete();
+		file.deleteOnExit();
+		
+		MappedFileIndexStore<Long> store = new MappedFileIndexStore<Long>(file, LongSerializer.get());
+		ShardedLongIndex index = new ShardedLongIndex(store, "mappedFileStore");
+		index.initializeShardBoundries(Arrays.asList(5000l, 10000l));
+		
+		for (long i = 0; i < 20000; i++) {
+			index.addToIndex(i, i);
+		}
+		
+		index.addToIndex(7l, 8l);
+		index.removeAllValuesAtIndex(9l);
+		store.close();
+		
+		store = new MappedFileIndexStore<Long>(file, LongSerializer.get());
+		index = new ShardedLongIndex(store, "mappedFileStore");
+		Assert.assertEquals(Arrays.asList(5000l, 10000l), index.getShardBoundries());
+		Assert.assertEquals(Arrays.asList(7l, 8l), index.getValuesForIndex(7l, 32));
+		Assert.assertEquals(0, index.getValuesForIndex(9l, 32).size());
+		Assert.assertEquals(Arrays.asList(19999l), index.getValuesForIndex(19999l, 32));
+		
+		long length = file.length();
+		store.compact();
+		Assert.assertTrue(file.length() < length);
+		index.addToIndex(20000l, 20000l);
+		store.close();
+		
+		store = new MappedFileIndexStore<Long>(file, LongSerializer.get());
+		index = new ShardedLongIndex(store, "mappedFileStore");
+		Assert.assertEquals(Arrays.asList(7l, 8l), index.getValuesForIndex(7l, 32));
+		Assert.assertEquals(Arrays.asList(20000l), index.getValuesForIndex(20000l, 32));
+		store.close();
+	}
+
+	@Test
+	public void mappedFileStoreCompactsPastInitialCapacity() throws Exception {
+		File file = File.createTempFile("mappedFileStoreCompacts", ".log");
+		file.delete();
+		file.deleteOnExit();
+
+		MappedFileIndexStore<Long> store = new MappedFileIndexStore<Long>(file, LongSerializer.get());
+		for (long i = 0; i < 30000; i++) {
+			store.mutate(Arrays.asList(IndexMutation.insert(ROW, i, new byte[32])));
+		}
+
+		store.compact();
+		Assert.assertTrue(file.length() > 1024 * 1024);
+		Assert.assertFalse(new File(file.getPath() + ".tmp").exists());
+		store.mutate(Arrays.asList(IndexMutation.insert(ROW, 30000l, new byte[32])));
+		store.close();
+
+		store = new MappedFileIndexStore<Long>(file, LongSerializer.get());
+		Assert.assertEquals(30001, store.count(ROW, null, null));
+		store.close();
+	}
+
+	@Test
+	public void writeBehindStore() {
+		MemoryIndexStore<Long> backing = new MemoryIndexStore<Long>();
+		WriteBehindIndexStore<Long> store = new WriteBehindIndexStore<Long>(backing, 1000, 0);
+		ShardedLongIndex index = new ShardedLongIndex(backing, "writeBehindStore");
+		index.initializeShardBoundries(Arrays.asList(20l, 40l));
+		index.setStore(store);
+
+		for (long i = 0; i < 50; i++) {
+			index.addToIndex(i, i);
+			index.overwriteIndex(i, i + 1);
+		}
+		
+		index.addToIndex(5l, 100l);
+		index.removeValueAtIndex(6l, 7l);
+		index.removeAllValuesAtIndex(7l);
+		
+		Assert.assertEquals(1, backing.getRowCount());
+		Assert.assertEquals(Arrays.asList(6l, 100l), index.getValuesForIndex(5l, 32));
+		Assert.assertEquals(0, index.getValuesForIndex(6l, 32).size());
+		Assert.assertEquals(0, index.getValuesForIndex(7l, 32).size());
+		
+		List<IndexItem<Long>> list = index.getValueRangesForIndex(4l, false, 20, 20);
+		Assert.assertEquals(20, list.size());
+		Assert.assertEquals(8l, (long)list.get(2).getIndex());
+		Assert.assertEquals(25l, (long)list.get(19).getIndex());
+		
+		list = index.getValueRangesForIndex(9l, true, 5, 20);
+		Assert.assertEquals(5, list.size());
+		Assert.assertEquals(5l, (long)list.get(2).getIndex());
+		Assert.assertEquals(3l, (long)list.get(4).getIndex());
+		
+		store.close();
+		Assert.assertEquals(0, store.getPendingCount());
+		
+		index.setStore(backing);
+		Assert.assertEquals(Arrays.asList(6l, 100l), index.getValuesForIndex(5l, 32));
+		Assert.assertEquals(0, index.getValuesForIndex(7l, 32).size());
+		Assert.assertEquals(Arrays.asList(50l), index.getValuesForIndex(49l, 32));
+		
+		store = new WriteBehindIndexStore<Long>(backing, 10, 0);
+		index.setStore(store);
+		
+		for (long i = 0; i < 9; i++) {
+			index.overwriteIndex(1000l, i);
+		}
+		
+		Assert.assertEquals(1, store.getPendingCount());
+		
+		for (long i = 1000; i < 1010; i++) {
+			index.overwriteIndex(i, i);
+		}
+		
+		Assert.assertEquals(0, store.getPendingCount());
+		Assert.assertEquals(Arrays.asList(1009l), index.getValuesForIndex(1009l, 32));
+	}
+
+	@Test
+	public void replicaRouting() {
+		List<MemoryIndexStore<Long>> nodes = Arrays.asList(new MemoryIndexStore<Long>(), new MemoryIndexStore<Long>(), new MemoryIndexStore<Long>());
+		ReplicaRoutingIndexStore<Long> store = new ReplicaRoutingIndexStore<Long>(new MemoryIndexStore<Long>());
+
+		for (int i = 0; i < nodes.size(); i++) {
+			store.addRange(BigInteger.ONE.shiftLeft(125 + i), nodes.get(i));
+		}
+
+		ShardedLongIndex index = new ShardedLongIndex(store, "replicaRouting");
+		index.initializeShardBoundries(Arrays.asList(10l, 20l, 30l, 40l, 50l, 60l));
+
+		for (long i = 0; i < 100; i++) {
+			index.addToIndex(i, i);
+			index.addToIndex(i % 10, i);
+		}
+
+		int rows = 0;
+		for (int i = 0; i < nodes.size(); i++) {
+			for (ByteBuffer row : nodes.get(i).getRows().keySet()) {
+				byte[] key = new byte[row.remaining()];
+				row.duplicate().get(key);
+				Assert.assertSame(nodes.get(i), store.getStoreForRow(key));
+				rows++;
+			}
+		}
+
+		Assert.assertEquals(0, ((MemoryIndexStore<Long>) store.getDefaultStore()).getRowCount());
+		Assert.assertTrue(rows > 7);
+		Assert.assertEquals(10, index.getValuesForIndex(5l, 32).size());
+		Assert.assertEquals(Arrays.asList(75l), index.getValuesForIndex(75l, 32));
+		Assert.assertEquals(15, index.getValueRangesForIndex(0l, false, 15, 20).size());
+
+		store.setMaxCachedRoutes(5);
+		for (long i = 0; i < 100; i++) {
+			index.getValuesForIndex(i % 10, 32);
+			Assert.assertTrue(store.getCachedRouteCount() <= 5);
+		}
+
+		store.setMaxCachedRoutes(0);
+		Assert.assertEquals(10, index.getValuesForIndex(5l, 32).size());
+		Assert.assertEquals(0, store.getCachedRouteCount());
+
+		MemoryIndexStore<Long> fallback = new MemoryIndexStore<Long>();
+		store = new ReplicaRoutingIndexStore<Long>(fallback);
+		store.addRange(BigInteger.ONE.shiftLeft(127), new MemoryIndexStore<Long>() {
+			public void mutate(List<IndexMutation<Long>> mutations) {
+				throw new HectorException("replica down");
+			}
+		});
+
+		store.mutate(Arrays.asList(IndexMutation.insert(ROW, 1l, new byte[0])));
+		Assert.assertEquals(1, fallback.getRowCount());
+	}
+}
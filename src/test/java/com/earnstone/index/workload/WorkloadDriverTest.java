@@ -0,0 +1,102 @@
+/*
+ * Eindex: Earnstone Sharded Column Index for Cassandra
+ * 
+ * Copyright 2011 Corey Hulen, Earnstone Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+package com.earnstone.index.workload;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Properties;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class WorkloadDriverTest {
+
+	@Test
+	public void zipfianSkew() {
+		ZipfianGenerator zipfian = new ZipfianGenerator(10000, ZipfianGenerator.DEFAULT_THETA, false);
+		Random random = new Random(38);
+		int[] counts = new int[10000];
+
+		for (int i = 0; i < 100000; i++) {
+			counts[(int) zipfian.next(random)]++;
+		}
+
+		Assert.assertTrue(counts[0] > counts[1]);
+		Assert.assertTrue(counts[1] > counts[100]);
+		Assert.assertTrue(counts[0] > 100000 / 20);
+
+		ZipfianGenerator scrambled = new ZipfianGenerator(10000, ZipfianGenerator.DEFAULT_THETA, true);
+		Assert.assertEquals(scrambled.getItem(0), scrambled.getItem(0));
+		Assert.assertTrue(scrambled.getItem(0) < 10000);
+		Assert.assertTrue(scrambled.getItem(0) != scrambled.getItem(1));
+	}
+
+	@Test
+	public void latencyPercentiles() {
+		LatencyRecorder recorder = new LatencyRecorder();
+
+		for (long micros = 1; micros <= 1000; micros++) {
+			recorder.record(micros * 1000);
+		}
+
+		LatencyRecorder.Snapshot snapshot = recorder.takeInterval();
+		Assert.assertEquals(1000, snapshot.getCount());
+		Assert.assertTrue(Math.abs(snapshot.getPercentile(50) - 500) <= 500 / 16);
+		Assert.assertTrue(Math.abs(snapshot.getPercentile(99) - 990) <= 990 / 16);
+		Assert.assertTrue(Math.abs(snapshot.getMax() - 1000) <= 1000 / 16);
+		Assert.assertEquals(0, recorder.takeInterval().getCount());
+		Assert.assertEquals(1000, recorder.getTotal().getCount());
+
+		for (long micros = 0; micros < 100000000; micros = micros * 2 + 1) {
+			Assert.assertTrue(LatencyRecorder.getBucketValue(LatencyRecorder.getBucket(micros)) >= micros);
+			Assert.assertTrue(LatencyRecorder.getBucketValue(LatencyRecorder.getBucket(micros)) <= micros + micros / 16);
+		}
+	}
+
+	@Test
+	public void memoryWorkload() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("keys.count", "10000");
+		properties.setProperty("shards.count", "10");
+		properties.setProperty("preload.count", "1000");
+		properties.setProperty("threads", "2");
+		properties.setProperty("duration.seconds", "1");
+		properties.setProperty("report.interval.seconds", "1");
+		properties.setProperty("index.offHeapBoundaries", "true");
+		properties.setProperty("seed", "38");
+
+		WorkloadDriver driver = new WorkloadDriver(new WorkloadConfig(properties));
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+
+		try {
+			driver.open();
+			Assert.assertEquals(9, driver.getIndex().getShardBoundries().size());
+			long ops = driver.run(new PrintStream(bos));
+
+			Assert.assertTrue(ops > 0);
+			Assert.assertEquals(0, driver.getErrorCount());
+			Assert.assertTrue(driver.getRecorder(WorkloadDriver.Operation.SCAN).getTotal().getCount() > 0);
+			Assert.assertTrue(bos.toString().contains("[total"));
+		}
+		finally {
+			driver.close();
+		}
+	}
+}